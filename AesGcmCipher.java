@@ -0,0 +1,172 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AesGcmCipher encrypts with 256-bit AES in GCM mode, which authenticates the message (and
+ * the container header) as well as encrypting it. The key comes from the passphrase through
+ * PBKDF2, with the algorithm and the number of iterations up to whoever creates the cipher.
+ *
+ * What it writes after the container header is:
+ *   byte  0     : the PBKDF2 algorithm (1 = PBKDF2WithHmacSHA256, 2 = PBKDF2WithHmacSHA512)
+ *   bytes 1-4   : the number of PBKDF2 iterations, big-endian
+ *   bytes 5-20  : the PBKDF2 salt
+ *   bytes 21-32 : the GCM nonce
+ *   the rest    : the ciphertext, followed by GCM's 16-byte tag
+ *
+ * PBKDF2 is deliberately slow, so derived keys are kept in a cache shared by every instance.
+ * When encrypting, each passphrase gets one random salt per run of the program, so a batch
+ * of images with the same passphrase only derives its key once, and so does reading them
+ * back. Every message still gets its own random nonce, which is all GCM needs.
+ */
+public class AesGcmCipher implements StegCipher {
+
+	public static final int ID = 2;
+	public static final String DEFAULT_KDF = "PBKDF2WithHmacSHA256";
+	public static final int DEFAULT_ITERATIONS = 100000;
+
+	private static final String[] KDFS = {null, "PBKDF2WithHmacSHA256", "PBKDF2WithHmacSHA512"};
+	private static final int SALT = 16, NONCE = 12, TAG_BITS = 128;
+	private static final int PARAMS = 1+4+SALT+NONCE;
+	/** Anything more than this in a container is damage, or somebody trying to keep us busy */
+	private static final int MAX_ITERATIONS = 1 << 24;
+
+	/** Derived keys, by passphrase, algorithm, iterations and salt */
+	private static final LruCache<String, SecretKey> KEYS = new LruCache<String, SecretKey>(64);
+	/** The salt used for encrypting with each passphrase, algorithm and iteration count */
+	private static final LruCache<String, byte[]> SALTS = new LruCache<String, byte[]>(64);
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private static final ThreadLocal<Cipher> GCM = new ThreadLocal<Cipher>() {
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance("AES/GCM/NoPadding");
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("AES/GCM is not available", e); // every JVM since 8 has it
+			}
+		}
+	};
+
+	private final int kdf;
+	private final int iterations;
+
+	/**
+	 * An AesGcmCipher with DEFAULT_KDF and DEFAULT_ITERATIONS
+	 */
+	public AesGcmCipher() {
+		this(DEFAULT_KDF, DEFAULT_ITERATIONS);
+	}
+
+	/**
+	 * @param kdf PBKDF2WithHmacSHA256 or PBKDF2WithHmacSHA512
+	 * @param iterations How many PBKDF2 iterations to derive the key with
+	 */
+	public AesGcmCipher(String kdf, int iterations) {
+		int id = Arrays.asList(KDFS).indexOf(kdf);
+		if (id < 1) throw new IllegalArgumentException("Unknown key derivation: "+kdf);
+		if (iterations < 1 || iterations > MAX_ITERATIONS) throw new IllegalArgumentException("The iterations must be between 1 and "+MAX_ITERATIONS+".");
+		this.kdf = id;
+		this.iterations = iterations;
+	}
+
+	public int id() {
+		return ID;
+	}
+
+	public OutputStream encrypt(OutputStream out, byte[] header, String passphrase) throws IOException {
+		String name = fingerprint(passphrase)+"/"+kdf+"/"+iterations;
+		byte[] salt = SALTS.get(name);
+		if (salt == null) {
+			salt = new byte[SALT];
+			RANDOM.nextBytes(salt);
+			SALTS.put(name, salt);
+		}
+		byte[] nonce = new byte[NONCE];
+		RANDOM.nextBytes(nonce);
+
+		Cipher cipher = GCM.get();
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, key(passphrase, kdf, iterations, salt), new GCMParameterSpec(TAG_BITS, nonce));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Can't set up AES/GCM: "+e.getMessage(), e);
+		}
+		cipher.updateAAD(header);
+
+		DataOutputStream params = new DataOutputStream(out);
+		params.writeByte(kdf);
+		params.writeInt(iterations);
+		params.write(salt);
+		params.write(nonce);
+		params.flush();
+		return new CipherOutputStream(out, cipher);
+	}
+
+	public byte[] decrypt(byte[] data, int off, int len, byte[] header, String passphrase) {
+		if (len < PARAMS+TAG_BITS/8) return null;
+		int kdf = data[off] & 0xFF;
+		int iterations = ((data[off+1] & 0xFF) << 24) | ((data[off+2] & 0xFF) << 16) | ((data[off+3] & 0xFF) << 8) | (data[off+4] & 0xFF);
+		if (kdf < 1 || kdf >= KDFS.length || iterations < 1 || iterations > MAX_ITERATIONS) return null;
+		byte[] salt = new byte[SALT];
+		System.arraycopy(data, off+5, salt, 0, SALT);
+
+		Cipher cipher = GCM.get();
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, key(passphrase, kdf, iterations, salt), new GCMParameterSpec(TAG_BITS, data, off+5+SALT, NONCE));
+			cipher.updateAAD(header);
+			return cipher.doFinal(data, off+PARAMS, len-PARAMS);
+		} catch (AEADBadTagException e) {
+			return null; // wrong passphrase, or the image was changed
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Can't decrypt with AES/GCM: "+e.getMessage(), e);
+		}
+	}
+
+	private static SecretKey key(String passphrase, int kdf, int iterations, byte[] salt) throws GeneralSecurityException {
+		String name = fingerprint(passphrase)+"/"+kdf+"/"+iterations+"/"+hex(salt);
+		SecretKey key = KEYS.get(name);
+		if (key == null) {
+			PBEKeySpec spec = new PBEKeySpec(passphrase.toCharArray(), salt, iterations, 256);
+			try {
+				key = new SecretKeySpec(SecretKeyFactory.getInstance(KDFS[kdf]).generateSecret(spec).getEncoded(), "AES");
+			} finally {
+				spec.clearPassword();
+			}
+			KEYS.put(name, key);
+		}
+		return key;
+	}
+
+	/**
+	 * The caches are keyed by a hash of the passphrase rather than the passphrase itself, so
+	 * they don't hold on to more copies of it than they have to.
+	 */
+	static String fingerprint(String passphrase) {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			return hex(sha.digest(passphrase.getBytes(StandardCharsets.UTF_8)));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("SHA-256 is not available", e); // every JVM is required to have it
+		}
+	}
+
+	private static String hex(byte[] b) {
+		StringBuilder s = new StringBuilder(b.length*2);
+		for (byte x : b) s.append(Character.forDigit((x >> 4) & 15, 16)).append(Character.forDigit(x & 15, 16));
+		return s.toString();
+	}
+}
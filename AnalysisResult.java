@@ -0,0 +1,120 @@
+import java.io.PrintStream;
+
+/**
+ * AnalysisResult holds the counters collected by Analyzer and turns them into the numbers
+ * that StegImage.analyze prints. See StegImage.analyze for what each of them means.
+ *
+ * A result from Analyzer.sample only counts some of the pixels, so its numbers are
+ * estimates, and each comes with the margin of a 95% confidence interval around it. For a
+ * full scan the margins are all 0.
+ */
+public class AnalysisResult {
+
+	/** z for a two-sided 95% confidence interval */
+	static final double Z95 = 1.96;
+
+	public final int width, height;
+	long transitions, bit8ones, bit7ones;
+	/** How many color values the counters cover, which is all of them unless it was sampled */
+	long counted;
+	/** The standard errors of the three fractions, if the result was sampled */
+	double transitionError, leastBitError, leastTwoBitsError;
+
+	AnalysisResult(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Adds the counters from another part of the same image into this one.
+	 */
+	void merge(AnalysisResult other) {
+		transitions += other.transitions;
+		bit8ones += other.bit8ones;
+		bit7ones += other.bit7ones;
+		counted += other.counted;
+	}
+
+	/**
+	 * @return The number of color values (3 per pixel) in the image
+	 */
+	public long values() {
+		return (long)width*height*3;
+	}
+
+	/**
+	 * @return Whether the numbers are estimates from some of the pixels
+	 */
+	public boolean isSampled() {
+		return counted < values();
+	}
+
+	public double transitionPercent() {
+		return 100*(double)transitions / (double)counted;
+	}
+
+	public double leastBitPercent() {
+		return 100*(double)bit8ones / (double)counted;
+	}
+
+	public double leastTwoBitsPercent() {
+		return 100*(double)(bit8ones+bit7ones) / (double)(counted*2);
+	}
+
+	/**
+	 * The margins say how far off the matching percentage could be: the true value is in
+	 * [percent - margin, percent + margin] with 95% confidence.
+	 */
+	public double transitionMargin() {
+		return 100*Z95*transitionError;
+	}
+
+	public double leastBitMargin() {
+		return 100*Z95*leastBitError;
+	}
+
+	public double leastTwoBitsMargin() {
+		return 100*Z95*leastTwoBitsError;
+	}
+
+	/**
+	 * The LSB variance depends on how many values there are, so for a sample it's worked out
+	 * for the whole image from the sampled fraction of 1's.
+	 */
+	public double variance() {
+		return variance(isSampled() ? (double)bit8ones/counted*values() : bit8ones);
+	}
+
+	/**
+	 * @return The margin of variance(), from the interval around the fraction of 1's. The
+	 *         variance is largest when that's a half, so the interval isn't symmetric;
+	 *         this is the wider side.
+	 */
+	public double varianceMargin() {
+		if (!isSampled()) return 0;
+		double p = (double)bit8ones/counted, m = Z95*leastBitError, v = variance();
+		double lo = variance(Math.max(0, p-m)*values()), hi = variance(Math.min(1, p+m)*values());
+		double top = p-m <= 0.5 && 0.5 <= p+m ? variance(0.5*values()) : Math.max(lo, hi);
+		return Math.max(top-v, v-Math.min(lo, hi));
+	}
+
+	private double variance(double ones) {
+		double n0 = values() - ones, N = values();
+		return (2*n0*ones*(2*n0*ones-N))/(N*N*(N-1));
+	}
+
+	public void print(PrintStream out) {
+		if (isSampled()) {
+			out.println("Sampled "+counted/3+" of "+values()/3+" pixels; the numbers are within the given margins with 95% confidence.");
+			out.println("Percentage of bit transitions: "+transitionPercent()+" +/- "+transitionMargin());
+			out.println("Percentage of 1's in least bits: "+leastBitPercent()+" +/- "+leastBitMargin());
+			out.println("Percentage of 1's in least two bits: "+leastTwoBitsPercent()+" +/- "+leastTwoBitsMargin());
+			out.println("LSB variance: "+variance()+" +/- "+varianceMargin());
+		}else {
+			out.println("Percentage of bit transitions: "+transitionPercent());
+			out.println("Percentage of 1's in least bits: "+leastBitPercent());
+			out.println("Percentage of 1's in least two bits: "+leastTwoBitsPercent());
+			out.println("LSB variance: "+variance());
+		}
+	}
+}
@@ -0,0 +1,220 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Analyzer collects the counters behind StegImage.analyze. Instead of calling getRGB five
+ * times for every pixel, it walks the image a row at a time, keeping the row above, the
+ * current row and the row below in three int[] buffers that get rotated as it moves down.
+ * The image is cut into bands of rows that are counted on a fork-join pool and then added
+ * together, so the totals are the same no matter how the work was split.
+ */
+public class Analyzer extends RecursiveTask<AnalysisResult> {
+	private static final long serialVersionUID = 1L;
+
+	/** Bands smaller than this aren't worth giving to another thread */
+	private static final int MIN_ROWS = 64;
+
+	private final PixelBuffer source;
+	private final int from, to, rows;
+
+	private Analyzer(PixelBuffer source, int from, int to, int rows) {
+		this.source = source;
+		this.from = from;
+		this.to = to;
+		this.rows = rows;
+	}
+
+	/**
+	 * Counts the whole image, using as many threads as options allows.
+	 */
+	public static AnalysisResult analyze(PixelBuffer source, StegOptions options) {
+		int h = source.height();
+		if (options.getParallelism() <= 1 || h <= MIN_ROWS) return new Analyzer(source, 0, h, h).compute();
+		int rows = Math.max(MIN_ROWS, h/(options.getParallelism()*4));
+		return options.pool().invoke(new Analyzer(source, 0, h, rows));
+	}
+
+	protected AnalysisResult compute() {
+		if (to-from > rows) {
+			int mid = (from+to) >>> 1;
+			Analyzer top = new Analyzer(source, from, mid, rows);
+			top.fork();
+			AnalysisResult result = new Analyzer(source, mid, to, rows).compute();
+			result.merge(top.join());
+			return result;
+		}
+		return count();
+	}
+
+	/**
+	 * Counts rows [from, to). This gives exactly the same answers as the original loop in
+	 * StegImage.analyze, which read its neighbours into variables that it only updated when
+	 * the neighbour existed. At the edges of the image those variables still held whatever
+	 * they were last set to, so that's what is used here too:
+	 *   north on the top row is 0,
+	 *   south on the bottom row is the bottom-right pixel,
+	 *   east on the right edge is the pixel itself,
+	 *   west on the left edge is the second to last pixel of the row above (0 on the top row),
+	 * and east and west are always 0 in an image that's one pixel wide.
+	 */
+	private AnalysisResult count() {
+		int width = source.width(), height = source.height();
+		AnalysisResult result = new AnalysisResult(width, height);
+		if (from >= to) return result;
+
+		int[] above = new int[width], row = new int[width], below = new int[width], temp;
+		int corner = 0; // the stale south value used on the bottom row
+		if (height >= 2) {
+			source.getRow(height-1, below);
+			corner = below[width-1];
+		}
+		if (from > 0) source.getRow(from-1, above);
+		source.getRow(from, row);
+
+		int n, s, e, w, c, nmatch, temp8;
+		long transitions = 0, bit8ones = 0, bit7ones = 0;
+
+		for (int y = from; y < to; ++y) {
+			if (y != height-1) source.getRow(y+1, below);
+
+			for (int x = 0; x < width; ++x) {
+				c = row[x];
+				n = y != 0 ? above[x] : 0;
+				s = y != height-1 ? below[x] : corner;
+				if (width == 1) {
+					e = 0;
+					w = 0;
+				}else {
+					e = x != width-1 ? row[x+1] : c;
+					w = x != 0 ? row[x-1] : (y != 0 ? above[width-2] : 0);
+				}
+
+				//Go through the R, G, and B values of each pixel
+				for (int shift = 16; shift >= 0; shift -= 8) {
+					nmatch = 0;
+					if (((c >> (shift+1)) & 1) == 1) bit7ones++;
+					temp8 = (c >> shift) & 1;
+					if (temp8 == 1) bit8ones++;
+					if (temp8 != ((n >> shift) & 1)) nmatch++;
+					if (temp8 != ((s >> shift) & 1)) nmatch++;
+					if (temp8 != ((w >> shift) & 1)) nmatch++;
+					if (temp8 != ((e >> shift) & 1)) nmatch++;
+					if (nmatch >= 3) transitions++;
+				}
+			}
+
+			// Slide the window down a row
+			temp = above;
+			above = row;
+			row = below;
+			below = temp;
+		}
+
+		result.transitions = transitions;
+		result.bit8ones = bit8ones;
+		result.bit7ones = bit7ones;
+		result.counted = (long)(to-from)*width*3;
+		return result;
+	}
+
+	/** Samples are spread over a grid of up to this many by this many tiles */
+	private static final int TILES = 16;
+
+	/** Every sample has at least this many rounds, so its variances come from enough pixels to trust */
+	private static final int MIN_ROUNDS = 8;
+
+	/**
+	 * Estimates the counters from a sample of pixels, for telling quickly whether an image
+	 * is worth a closer look. The image is cut into a grid of tiles, and each round of
+	 * sampling picks one pixel at random from every tile, so each round is a stratified
+	 * sample of the whole image and no region can be missed. The standard errors come from
+	 * how much the sampled pixels vary, as if they'd been picked from the whole image at
+	 * once; spreading them over tiles can only make the real error smaller than that.
+	 * Sampling stops once all three percentages are within margin percentage points with
+	 * 95% confidence.
+	 *
+	 * A pixel read at random costs several times what one read in a full scan does, so once
+	 * a sample would cover a sixteenth of the image it's scanned in full instead, which is
+	 * about as quick and exact. Small images always end up that way.
+	 * @param margin How wide each side of the intervals may be, in percentage points
+	 */
+	public static AnalysisResult sample(PixelBuffer source, double margin, StegOptions options) {
+		if (!(margin > 0)) throw new IllegalArgumentException("The margin must be more than 0.");
+		int width = source.width(), height = source.height();
+		int across = Math.min(width, TILES), down = Math.min(height, TILES), tiles = across*down;
+		long budget = (long)width*height/16;
+		// Seeded by the size, so the same image always gets the same answer
+		SplittableRandom rand = new SplittableRandom((long)width << 32 | height);
+
+		AnalysisResult result = new AnalysisResult(width, height);
+		// The sums of the squares of each pixel's three fractions, for their variances
+		double[] squares = new double[3], error = new double[3];
+		int rounds = 0;
+		do {
+			if ((long)(rounds+1)*tiles > budget) return analyze(source, options);
+			for (int ty = 0; ty < down; ++ty) {
+				int y0 = (int)((long)ty*height/down), y1 = (int)((long)(ty+1)*height/down);
+				for (int tx = 0; tx < across; ++tx) {
+					int x0 = (int)((long)tx*width/across), x1 = (int)((long)(tx+1)*width/across);
+					int counts = countPixel(source, x0+rand.nextInt(x1-x0), y0+rand.nextInt(y1-y0));
+					int transitions = counts & 3, bit8ones = (counts >>> 2) & 3, bit7ones = counts >>> 4;
+					result.transitions += transitions;
+					result.bit8ones += bit8ones;
+					result.bit7ones += bit7ones;
+					squares[0] += transitions*transitions/9.0;
+					squares[1] += bit8ones*bit8ones/9.0;
+					squares[2] += (bit8ones+bit7ones)*(bit8ones+bit7ones)/36.0;
+				}
+			}
+			++rounds;
+
+			double n = (double)rounds*tiles;
+			double[] sums = { result.transitions/3.0, result.bit8ones/3.0, (result.bit8ones+result.bit7ones)/6.0 };
+			for (int i = 0; i < 3; ++i) {
+				// the variance of the pixels, over n again for the variance of their average, but
+				// never under 1.5/n: a sample that's all the same could still have missed something,
+				// and by the rule of three that's up to 3 in n (with 95% confidence again)
+				error[i] = Math.max(1.5/n, Math.sqrt(Math.max(0, (squares[i]-sums[i]*sums[i]/n)/(n-1)/n)));
+			}
+		} while (rounds < MIN_ROUNDS || 100*AnalysisResult.Z95*Math.max(error[0], Math.max(error[1], error[2])) > margin);
+
+		result.counted = (long)rounds*tiles*3;
+		result.transitionError = error[0];
+		result.leastBitError = error[1];
+		result.leastTwoBitsError = error[2];
+		return result;
+	}
+
+	/**
+	 * Counts one pixel, with the same neighbours at the edges as count uses.
+	 * @return The transitions, 1's in the least bits and 1's in the second least bits of its
+	 *         three color values, 2 bits each, in that order from the bottom
+	 */
+	private static int countPixel(PixelBuffer source, int x, int y) {
+		int width = source.width(), height = source.height(), pos = y*width+x;
+		int c = source.getRGB(pos), n, s, e, w, nmatch, temp8, transitions = 0, bit8ones = 0, bit7ones = 0;
+		n = y != 0 ? source.getRGB(pos-width) : 0;
+		if (y != height-1) s = source.getRGB(pos+width);
+		else s = height >= 2 ? source.getRGB(height*width-1) : 0;
+		if (width == 1) {
+			e = 0;
+			w = 0;
+		}else {
+			e = x != width-1 ? source.getRGB(pos+1) : c;
+			w = x != 0 ? source.getRGB(pos-1) : (y != 0 ? source.getRGB(pos-2) : 0);
+		}
+
+		for (int shift = 16; shift >= 0; shift -= 8) {
+			nmatch = 0;
+			if (((c >> (shift+1)) & 1) == 1) bit7ones++;
+			temp8 = (c >> shift) & 1;
+			if (temp8 == 1) bit8ones++;
+			if (temp8 != ((n >> shift) & 1)) nmatch++;
+			if (temp8 != ((s >> shift) & 1)) nmatch++;
+			if (temp8 != ((w >> shift) & 1)) nmatch++;
+			if (temp8 != ((e >> shift) & 1)) nmatch++;
+			if (nmatch >= 3) transitions++;
+		}
+		return transitions | bit8ones << 2 | bit7ones << 4;
+	}
+}
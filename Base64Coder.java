@@ -177,7 +177,6 @@ public static byte[] decode (String s) {
 * @throws    IllegalArgumentException If the input is not valid Base64 encoded data.
 */
 public static byte[] decode (char[] in) {
-	System.out.println(in+" "+in.length);
    return decode(in, 0, in.length); }
 
 /**
@@ -0,0 +1,95 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BatchRunner works through a manifest of StegJobs on a fixed number of worker threads,
+ * printing each job's result line as soon as it finishes.
+ *
+ * Every job holds a whole decoded image while it runs, so the manifest is read lazily and a
+ * new job is only started once one of the workers is free. That way there are never more
+ * than workers images in memory, however long the manifest is.
+ */
+public class BatchRunner {
+
+	private final int workers;
+	private final StegOptions options;
+
+	/**
+	 * @param workers How many jobs to run at once
+	 */
+	public BatchRunner(int workers) {
+		this(workers, new StegOptions().getPngLevel());
+	}
+
+	/**
+	 * @param pngLevel How hard to compress the PNGs e jobs write (see StegOptions.setPngLevel).
+	 *                 Turning it down gets through big batches faster, at the cost of bigger
+	 *                 files.
+	 */
+	public BatchRunner(int workers, int pngLevel) {
+		if (workers < 1) throw new IllegalArgumentException("There must be at least one worker.");
+		this.workers = workers;
+		// Split the cores between the jobs rather than have every job try to use all of them
+		options = new StegOptions().setParallelism(Math.max(1, Runtime.getRuntime().availableProcessors()/workers)).setSealed(true).setPngLevel(pngLevel);
+	}
+
+	/**
+	 * Runs every job in the manifest. Blank lines and lines starting with # are skipped.
+	 * @param manifest The manifest, one job per line
+	 * @param out Where to print the result of each job
+	 * @return How many jobs failed, including lines that couldn't be parsed
+	 */
+	public int run(BufferedReader manifest, final PrintStream out) throws IOException, InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		final Semaphore free = new Semaphore(workers);
+		final AtomicInteger failed = new AtomicInteger();
+		int lineNo = 0, jobs = 0;
+		try {
+			String line;
+			while ((line = manifest.readLine()) != null) {
+				lineNo++;
+				String text = line.trim();
+				if (text.isEmpty() || text.startsWith("#")) continue;
+				jobs++;
+
+				final StegJob job;
+				try {
+					job = StegJob.parse(text, lineNo);
+				}catch (IllegalArgumentException e) {
+					failed.incrementAndGet();
+					synchronized (out) {
+						out.println("{\"line\":"+lineNo+",\"status\":\"error\",\"error\":"+Json.quote(e.getMessage())+"}");
+					}
+					continue;
+				}
+
+				free.acquire();
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							String result = job.run(options);
+							if (result.contains("\"status\":\"error\"")) failed.incrementAndGet();
+							synchronized (out) {
+								out.println(result);
+							}
+						}finally {
+							free.release();
+						}
+					}
+				});
+			}
+		}finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		}
+		out.flush();
+		System.err.println((jobs-failed.get())+" of "+jobs+" jobs succeeded.");
+		return failed.get();
+	}
+}
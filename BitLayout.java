@@ -0,0 +1,139 @@
+/**
+ * A BitLayout says which bits of a pixel hold message bits: the lowest depth bits of each
+ * of the chosen color channels. The original program always used the 2 lowest bits of red,
+ * green and blue, which is DEFAULT. Using more bits per channel holds more message per
+ * pixel, at the cost of changing each pixel more.
+ *
+ * The message bits that go into one pixel make up a value of bitsPerPixel() bits. The
+ * lowest depth bits of the value go in red, the next in green and the last in blue,
+ * skipping any channel that isn't used. For DEFAULT that's exactly the order the original
+ * program wrote bits in.
+ *
+ * Everything that depends on the layout is worked out up front. Putting a value into a
+ * pixel is one lookup in a table of every value's bits already spread out over the
+ * channels, and taking it out is a masked rotation per channel (the mask is 0 for a channel
+ * that isn't used), so neither has a branch or a loop over the channels. Both work on the
+ * whole pixel at once.
+ */
+public final class BitLayout {
+
+	public static final int RED = 4, GREEN = 2, BLUE = 1, RGB = RED | GREEN | BLUE;
+
+	/** 2 bits in each of red, green and blue */
+	public static final BitLayout DEFAULT = new BitLayout(2, RGB);
+
+	// Layouts read from headers, by code, so the tables are only built once each
+	private static final BitLayout[] byCode = new BitLayout[32];
+
+	private final int depth, channels, bits;
+	private final int keep;                // the bits of a pixel that embed leaves alone
+	private final int[] spread;            // value -> the bits to OR into a pixel
+	private final int redShift, greenShift, blueShift; // rotations that line each channel's bits up with the value
+	private final int redMask, greenMask, blueMask;    // and which bits of the rotated pixel to keep (0 if unused)
+
+	/**
+	 * @param depth How many low bits of each channel to use, 1 to 4
+	 * @param channels Which channels to use, some combination of RED, GREEN and BLUE
+	 */
+	public BitLayout(int depth, int channels) {
+		if (depth < 1 || depth > 4) throw new IllegalArgumentException("The depth must be from 1 to 4 bits per channel.");
+		if (channels < 1 || channels > RGB) throw new IllegalArgumentException("At least one of red, green and blue must be used.");
+		this.depth = depth;
+		this.channels = channels;
+
+		int mask = (1 << depth) - 1, used = 0, offset = 0;
+		int[] shifts = new int[3], offsets = new int[3];
+		int n = 0;
+		for (int channel = RED, shift = 16; channel > 0; channel >>= 1, shift -= 8) {
+			if ((channels & channel) == 0) continue;
+			used |= mask << shift;
+			shifts[n] = shift;
+			offsets[n++] = offset;
+			offset += depth;
+		}
+		bits = offset;
+		keep = ~used;
+
+		spread = new int[1 << bits];
+		for (int v = 0; v < spread.length; ++v) {
+			for (int i = 0; i < n; ++i) spread[v] |= ((v >> offsets[i]) & mask) << shifts[i];
+		}
+
+		int[] rot = new int[3], keepBits = new int[3];
+		for (int i = 0; i < n; ++i) {
+			rot[2 - shifts[i]/8] = shifts[i] - offsets[i];
+			keepBits[2 - shifts[i]/8] = mask << offsets[i];
+		}
+		redShift = rot[0];
+		greenShift = rot[1];
+		blueShift = rot[2];
+		redMask = keepBits[0];
+		greenMask = keepBits[1];
+		blueMask = keepBits[2];
+	}
+
+	public int depth() {
+		return depth;
+	}
+
+	public int channels() {
+		return channels;
+	}
+
+	/**
+	 * @return How many message bits each pixel holds
+	 */
+	public int bitsPerPixel() {
+		return bits;
+	}
+
+	/**
+	 * @return rgb with its message bits replaced by value
+	 */
+	public int embed(int rgb, int value) {
+		return (rgb & keep) | spread[value];
+	}
+
+	/**
+	 * @return The message bits in rgb
+	 */
+	public int extract(int rgb) {
+		return (Integer.rotateRight(rgb, redShift) & redMask) | (Integer.rotateRight(rgb, greenShift) & greenMask)
+				| (Integer.rotateRight(rgb, blueShift) & blueMask);
+	}
+
+	/**
+	 * @return A 5-bit code for this layout, for StegHeader's flags. DEFAULT is 0.
+	 */
+	public int code() {
+		return ((depth-1) ^ 1) | ((channels ^ RGB) << 2);
+	}
+
+	/**
+	 * @return The layout for a code from code(), or null if it isn't one
+	 */
+	public static BitLayout fromCode(int code) {
+		if (code == 0) return DEFAULT;
+		int channels = ((code >> 2) & 7) ^ RGB;
+		if ((code >> 5) != 0 || channels == 0) return null;
+		BitLayout layout = byCode[code];
+		if (layout == null) { // a race here just builds the same tables twice
+			layout = new BitLayout(((code & 3) ^ 1) + 1, channels);
+			byCode[code] = layout;
+		}
+		return layout;
+	}
+
+	public boolean equals(Object o) {
+		return o instanceof BitLayout && ((BitLayout)o).code() == code();
+	}
+
+	public int hashCode() {
+		return code();
+	}
+
+	public String toString() {
+		return depth+" bit"+(depth == 1 ? "" : "s")+" of "+((channels & RED) != 0 ? "R" : "")
+				+((channels & GREEN) != 0 ? "G" : "")+((channels & BLUE) != 0 ? "B" : "");
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * BitPacker cuts a run of message bytes into the values that go into successive pixels
+ * under a BitLayout, and puts them there. Bytes are taken lowest bit first, and a value
+ * can straddle two bytes or a byte can straddle two pixels; the packer keeps whatever
+ * bits are left over between calls, so the caller only has to hand it pixels.
+ *
+ * Nothing is allocated after construction, so one packer can go through a whole image.
+ */
+public final class BitPacker {
+
+	private final BitLayout layout;
+	private final int bits, full;  // bits per pixel, and a mask of all of them
+	private int skip;           // low bits of the next pixel that belong to somebody else
+	private byte[] src;
+	private int pos, end;
+	private long acc;           // bits taken from src but not yet put in a pixel
+	private int nbits;
+	private int mask;           // which bits of the last value were the message's
+
+	/**
+	 * @param skip How many bits at the bottom of the first pixel's value to leave alone,
+	 *             for when the message doesn't start on a pixel boundary
+	 */
+	public BitPacker(BitLayout layout, int skip) {
+		if (skip < 0 || skip >= layout.bitsPerPixel()) throw new IllegalArgumentException("Can't skip "+skip+" bits of a "+layout.bitsPerPixel()+"-bit pixel.");
+		this.layout = layout;
+		this.bits = layout.bitsPerPixel();
+		this.full = (1 << bits) - 1;
+		this.skip = skip;
+	}
+
+	/**
+	 * Queues bits to go in ahead of the input, like the length in front of a legacy message.
+	 * The queued bits count towards the 64 the packer can hold.
+	 */
+	public void push(int value, int count) {
+		if (nbits+count > 64-8) throw new IllegalStateException("Too many bits queued.");
+		acc |= ((long)value & ((1L << count) - 1)) << nbits;
+		nbits += count;
+	}
+
+	/**
+	 * Sets the bytes to pack next, src[from, to). Any bits left over from the last input
+	 * go first.
+	 */
+	public void input(byte[] src, int from, int to) {
+		this.src = src;
+		pos = from;
+		end = to;
+	}
+
+	/**
+	 * @return Whether every bit of the input has been packed
+	 */
+	public boolean isEmpty() {
+		return nbits == 0 && pos >= end;
+	}
+
+	/**
+	 * Puts the next value into a pixel. If the input runs out part of the way through the
+	 * pixel, only the bits that are left are changed.
+	 * @return rgb with the message bits in it
+	 */
+	public int pack(int rgb) {
+		int value = take();
+		if (mask == full) return layout.embed(rgb, value);
+		// a partial pixel: keep the bits that aren't ours
+		return layout.embed(rgb, (layout.extract(rgb) & ~mask) | value);
+	}
+
+	/**
+	 * Takes the next value without putting it in a pixel, for callers that put it there
+	 * later themselves. mask() then says which bits of the value are the message's; that's
+	 * all of them except at the very start and end of the input.
+	 */
+	public int take() {
+		int room = bits - skip;
+		while (nbits < room && pos < end) {
+			acc |= (long)(src[pos++] & 0xFF) << nbits;
+			nbits += 8;
+		}
+		int n = Math.min(room, nbits);
+		int value = ((int)acc & ((1 << n) - 1)) << skip;
+		acc >>>= n;
+		nbits -= n;
+		mask = ((1 << n) - 1) << skip;
+		skip = 0;
+		return value;
+	}
+
+	/**
+	 * @return Which bits of the last value from take are the message's
+	 */
+	public int mask() {
+		return mask;
+	}
+
+	/**
+	 * pack for a run of pixels, pixels[from, to), changed in place, stopping once the input
+	 * runs out. This is the one to use for whole rows, since the bits being packed stay in
+	 * locals.
+	 * @return The index of the first pixel that wasn't used
+	 */
+	public int pack(int[] pixels, int from, int to) {
+		if (skip != 0 && from < to) {
+			pixels[from] = pack(pixels[from]);
+			from++;
+		}
+		byte[] src = this.src;
+		long acc = this.acc;
+		int nbits = this.nbits, pos = this.pos, end = this.end, i = from;
+		for (; i < to; ++i) {
+			while (nbits < bits && pos < end) {
+				acc |= (long)(src[pos++] & 0xFF) << nbits;
+				nbits += 8;
+			}
+			if (nbits < bits) break; // the last pixel may only be partly ours
+			pixels[i] = layout.embed(pixels[i], (int)acc & full);
+			acc >>>= bits;
+			nbits -= bits;
+		}
+		this.acc = acc;
+		this.nbits = nbits;
+		this.pos = pos;
+		if (i < to && nbits > 0) pixels[i] = pack(pixels[i++]);
+		return i;
+	}
+}
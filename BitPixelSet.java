@@ -0,0 +1,53 @@
+/**
+ * A PixelSet backed by one bit per pixel in the image. Lookups and inserts are a single
+ * array access, and nextFree skips over 64 visited pixels at a time.
+ */
+public class BitPixelSet implements PixelSet {
+
+	private final long[] bits;
+	private final int capacity;
+	private int size = 0;
+
+	public BitPixelSet(int capacity) {
+		this.capacity = capacity;
+		bits = new long[(capacity+63) >>> 6];
+	}
+
+	public boolean contains(int pos) {
+		return (bits[pos >>> 6] & (1L << pos)) != 0;
+	}
+
+	public void insert(int pos) {
+		long mask = 1L << pos; // shifts on longs only use the low 6 bits of pos
+		if ((bits[pos >>> 6] & mask) == 0) {
+			bits[pos >>> 6] |= mask;
+			size++;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int nextFree(int pos) {
+		if (size >= capacity) return -1;
+		int free = nextClear(pos, capacity);
+		if (free < 0) free = nextClear(0, pos); // wrap around to the start of the image
+		return free;
+	}
+
+	/**
+	 * Finds the first clear bit in [from, to), or -1 if they're all set.
+	 */
+	private int nextClear(int from, int to) {
+		if (from >= to) return -1;
+		int word = from >>> 6;
+		long free = ~bits[word] & (-1L << from); // ignore the bits before from in the first word
+		while (free == 0) {
+			if ((long)++word << 6 >= to) return -1;
+			free = ~bits[word];
+		}
+		int pos = (word << 6) + Long.numberOfTrailingZeros(free);
+		return pos < to ? pos : -1;
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * BitUnpacker is the opposite of BitPacker: it takes the message bits out of successive
+ * pixels under a BitLayout and strings them back together into bytes, lowest bit first.
+ * Bits that don't make a whole byte yet are kept for the next pixel, and bits past the end
+ * of the output are kept for the next output, so the caller only has to hand it pixels.
+ *
+ * Nothing is allocated after construction, so one unpacker can go through a whole image.
+ */
+public final class BitUnpacker {
+
+	private final BitLayout layout;
+	private final int bits;
+	private int skip;           // low bits of the next pixel that belong to somebody else
+	private byte[] dst;
+	private int pos, end;
+	private long acc;           // bits taken from pixels but not yet written out
+	private int nbits;
+
+	/**
+	 * @param skip How many bits at the bottom of the first pixel's value to ignore, for
+	 *             when the message doesn't start on a pixel boundary
+	 */
+	public BitUnpacker(BitLayout layout, int skip) {
+		if (skip < 0 || skip >= layout.bitsPerPixel()) throw new IllegalArgumentException("Can't skip "+skip+" bits of a "+layout.bitsPerPixel()+"-bit pixel.");
+		this.layout = layout;
+		this.bits = layout.bitsPerPixel();
+		this.skip = skip;
+	}
+
+	/**
+	 * Sets where to write bytes next, dst[from, to). Bits left over from the last output
+	 * go there first.
+	 */
+	public void output(byte[] dst, int from, int to) {
+		this.dst = dst;
+		pos = from;
+		end = to;
+		drain();
+	}
+
+	/**
+	 * @return Whether the output has been filled
+	 */
+	public boolean isFull() {
+		return pos >= end;
+	}
+
+	/**
+	 * @return Where the next byte will be written in the output
+	 */
+	public int position() {
+		return pos;
+	}
+
+	/**
+	 * Takes the message bits out of a pixel.
+	 */
+	public void unpack(int rgb) {
+		acc |= (long)(layout.extract(rgb) >>> skip) << nbits;
+		nbits += bits - skip;
+		skip = 0;
+		drain();
+	}
+
+	/**
+	 * unpack for a run of pixels, pixels[from, to), stopping once the output is full. This
+	 * is the one to use for whole rows, since the bits being collected stay in locals.
+	 * @return The index of the first pixel that wasn't used
+	 */
+	public int unpack(int[] pixels, int from, int to) {
+		if (skip != 0 && from < to) unpack(pixels[from++]);
+		byte[] dst = this.dst;
+		long acc = this.acc;
+		int nbits = this.nbits, pos = this.pos, end = this.end, i = from;
+		for (; i < to && pos < end; ++i) {
+			acc |= (long)layout.extract(pixels[i]) << nbits;
+			nbits += bits;
+			while (nbits >= 8 && pos < end) {
+				dst[pos++] = (byte)acc;
+				acc >>>= 8;
+				nbits -= 8;
+			}
+		}
+		this.acc = acc;
+		this.nbits = nbits;
+		this.pos = pos;
+		return i;
+	}
+
+	/**
+	 * Writes out any bits that don't make up a whole byte as one last byte, if there's room.
+	 * @return Whether there was anything to write
+	 */
+	public boolean flush() {
+		if (nbits == 0 || pos >= end) return false;
+		dst[pos++] = (byte)acc;
+		acc = 0;
+		nbits = 0;
+		return true;
+	}
+
+	private void drain() {
+		while (nbits >= 8 && pos < end) {
+			dst[pos++] = (byte)acc;
+			acc >>>= 8;
+			nbits -= 8;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * The chi-square attack of Westfeld and Pfitzmann. Replacing LSBs with message bits makes the
+ * two values of each pair 2k and 2k+1 turn up about equally often, because whichever one a
+ * pixel had, the message is as likely to leave it on either. In a clean image they usually
+ * aren't equal. This keeps a histogram of each channel and measures, with a chi-square test,
+ * how well the pairs fit the "equal" that a message would produce.
+ *
+ * Unlike RS and sample pair analysis this doesn't estimate how much was embedded. Its
+ * estimates are the probability that the pairs were evened out by embedding, which is close
+ * to 1 once most of the LSBs carry a message and close to 0 for a clean image. A short
+ * message scattered over a big image won't move it much; the other two are better for that.
+ */
+public class ChiSquareDetector extends Detector {
+
+	/** Pairs whose values are each expected fewer times than this are left out, as the test needs */
+	private static final double MIN_EXPECTED = 5;
+
+	private final long[][] histograms = new long[3][256];
+
+	public String name() {
+		return "chi_square";
+	}
+
+	public Detector fresh() {
+		return new ChiSquareDetector();
+	}
+
+	public void row(int[] row, int width) {
+		long[] red = histograms[0], green = histograms[1], blue = histograms[2];
+		for (int x = 0; x < width; ++x) {
+			int rgb = row[x];
+			red[(rgb >> 16) & 0xFF]++;
+			green[(rgb >> 8) & 0xFF]++;
+			blue[rgb & 0xFF]++;
+		}
+	}
+
+	public void merge(Detector other) {
+		long[][] theirs = ((ChiSquareDetector)other).histograms;
+		for (int c = 0; c < 3; ++c) {
+			for (int v = 0; v < 256; ++v) histograms[c][v] += theirs[c][v];
+		}
+	}
+
+	public double[] estimates() {
+		double[] p = new double[3];
+		for (int c = 0; c < 3; ++c) {
+			long[] h = histograms[c];
+			double chi = 0;
+			int categories = 0;
+			for (int k = 0; k < 256; k += 2) {
+				double expected = (h[k] + h[k+1]) / 2.0;
+				if (expected < MIN_EXPECTED) continue;
+				double d = h[k] - expected;
+				chi += d*d/expected;
+				categories++;
+			}
+			// the chance of a fit at least this bad if the pairs really were even
+			p[c] = categories < 2 ? Double.NaN : upperGamma((categories-1)/2.0, chi/2);
+		}
+		return p;
+	}
+
+	/**
+	 * The regularized upper incomplete gamma function Q(a, x), which is what a chi-square
+	 * test's p-value comes down to. This is the usual pairing of a series for small x and a
+	 * continued fraction (by Lentz's method) for large x.
+	 */
+	static double upperGamma(double a, double x) {
+		if (x <= 0) return 1;
+		double front = Math.exp(a*Math.log(x) - x - logGamma(a));
+		if (x < a+1) {
+			double term = 1/a, sum = term;
+			for (int n = 1; n < 1000 && Math.abs(term) > Math.abs(sum)*1e-15; ++n) {
+				term *= x/(a+n);
+				sum += term;
+			}
+			return Math.max(0, 1 - sum*front);
+		}
+		double tiny = 1e-300, b = x+1-a, c = 1/tiny, d = 1/b, f = d;
+		for (int n = 1; n < 1000; ++n) {
+			double an = -n*(n-a);
+			b += 2;
+			d = an*d + b;
+			if (Math.abs(d) < tiny) d = tiny;
+			c = b + an/c;
+			if (Math.abs(c) < tiny) c = tiny;
+			d = 1/d;
+			double step = d*c;
+			f *= step;
+			if (Math.abs(step-1) < 1e-15) break;
+		}
+		return f*front;
+	}
+
+	/**
+	 * ln(Gamma(x)) for x > 0, by Lanczos's approximation.
+	 */
+	static double logGamma(double x) {
+		double[] g = {76.18009172947146, -86.50532032941677, 24.01409824083091, -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+		double y = x, tmp = x + 5.5, ser = 1.000000000190015;
+		tmp -= (x+0.5)*Math.log(tmp);
+		for (double gj : g) ser += gj/++y;
+		return -tmp + Math.log(2.5066282746310005*ser/x);
+	}
+}
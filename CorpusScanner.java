@@ -0,0 +1,235 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * CorpusScanner analyzes every image under a directory in one JVM, printing a JSON line for
+ * each with the same statistics, estimates and timings as an a job (see StegJob), and then
+ * the images most likely to be hiding something.
+ *
+ * The images go through two pools of threads: decoders, which read an image into memory (or
+ * map it, if MappedImage understands it), and workers, which analyze it. Decoding is mostly
+ * waiting on the disk and inflating, and analyzing is all arithmetic, so with both going at
+ * once neither has to wait for the other. An image holds a permit from the moment it starts
+ * being decoded until its analysis is done, and the directory isn't walked any further while
+ * they're all taken, so there are never more than resident images in memory however big the
+ * tree is. The ranking only keeps the top few scores, so that stays small too.
+ */
+public class CorpusScanner {
+
+	/** Suffixes MappedImage reads that ImageIO may not have a reader for */
+	private static final List<String> MAPPED = Arrays.asList("bmp", "ppm", "tif", "tiff");
+
+	private final int decoders, workers, resident;
+	private final double margin;
+	private final StegOptions options;
+
+	/**
+	 * @param decoders How many images to decode at once
+	 * @param workers How many images to analyze at once
+	 * @param resident How many images may be in memory at once, whether they're being decoded,
+	 *                 waiting for a worker or being analyzed. At least workers, or some of them
+	 *                 will always be idle; a few more lets the decoders get ahead.
+	 * @param margin If more than 0, the statistics are only sampled to within this many
+	 *               percentage points (see Analyzer.sample)
+	 */
+	public CorpusScanner(int decoders, int workers, int resident, double margin) {
+		if (decoders < 1 || workers < 1) throw new IllegalArgumentException("There must be at least one decoder and one worker.");
+		if (resident < 1) throw new IllegalArgumentException("At least one image has to fit in memory.");
+		this.decoders = decoders;
+		this.workers = workers;
+		this.resident = resident;
+		this.margin = margin;
+		// Split the cores between the workers rather than have every image try to use all of them
+		options = new StegOptions().setParallelism(Math.max(1, Runtime.getRuntime().availableProcessors()/workers));
+	}
+
+	/**
+	 * Scans every image under root, in no particular order.
+	 * @param out Where to print each image's result as it finishes
+	 * @param top How many of the highest scoring images to return
+	 * @return The top images, most suspicious first
+	 */
+	public List<Suspect> run(File root, final PrintStream out, int top) throws IOException, InterruptedException {
+		final ExecutorService decode = Executors.newFixedThreadPool(decoders);
+		final ExecutorService analyze = Executors.newFixedThreadPool(workers);
+		final Semaphore free = new Semaphore(resident);
+		final Ranking ranking = new Ranking(top);
+		final AtomicInteger failed = new AtomicInteger(), scanned = new AtomicInteger();
+		try {
+			Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+					if (!attrs.isRegularFile() || !isImage(path)) return FileVisitResult.CONTINUE;
+					final File file = path.toFile();
+					scanned.incrementAndGet();
+					try {
+						free.acquire();
+					}catch (InterruptedException e) {
+						return FileVisitResult.TERMINATE;
+					}
+					decode.execute(new Runnable() {
+						public void run() {
+							final long start = System.nanoTime();
+							final StringBuilder line = new StringBuilder();
+							line.append("{\"file\":").append(Json.quote(file.getPath()));
+							final PixelBuffer source;
+							try {
+								source = StegImage.load(file);
+							}catch (Throwable e) { // even running out of memory on one huge image has to give its permit back
+								fail(line, e, start);
+								free.release();
+								return;
+							}
+							final long decoded = StegJob.lap(line, "read_ms", start);
+							analyze.execute(new Runnable() {
+								public void run() {
+									try {
+										// how long it sat decoded, waiting for a worker
+										StegJob.lap(line, "wait_ms", decoded);
+										double score = score(StegJob.analyze(line, source, options, margin));
+										line.append(",\"score\":").append(Double.isNaN(score) ? "null" : Double.toString(score));
+										line.append(",\"status\":\"ok\"");
+										ranking.add(new Suspect(file, score));
+										print(StegJob.finish(line, start));
+									}catch (Throwable e) {
+										fail(line, e, start);
+									}finally {
+										free.release();
+									}
+								}
+							});
+						}
+
+						private void fail(StringBuilder line, Throwable e, long start) {
+							failed.incrementAndGet();
+							String error = e.getMessage() != null ? e.getMessage() : e.toString();
+							line.append(",\"status\":\"error\",\"error\":").append(Json.quote(error));
+							print(StegJob.finish(line, start));
+						}
+
+						private void print(String line) {
+							synchronized (out) {
+								out.println(line);
+							}
+						}
+					});
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult visitFileFailed(Path path, IOException e) {
+					// an unreadable directory shouldn't stop the rest of the scan
+					synchronized (out) {
+						out.println("{\"file\":"+Json.quote(path.toString())+",\"status\":\"error\",\"error\":"+Json.quote(String.valueOf(e.getMessage()))+"}");
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}finally {
+			// every decoder hands its image to the workers before it finishes, so they have to go first
+			decode.shutdown();
+			decode.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			analyze.shutdown();
+			analyze.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		}
+		out.flush();
+		System.err.println((scanned.get()-failed.get())+" of "+scanned.get()+" images scanned.");
+		return ranking.sorted();
+	}
+
+	/**
+	 * @return Whether a file looks like an image, going by its suffix
+	 */
+	private static boolean isImage(Path path) {
+		String name = path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot <= 0) return false;
+		String suffix = name.substring(dot+1).toLowerCase(Locale.ROOT);
+		return MAPPED.contains(suffix) || ImageIO.getImageReadersBySuffix(suffix).hasNext();
+	}
+
+	/**
+	 * @return The highest fraction of replaced LSBs that RS analysis or sample pair analysis
+	 *         estimates for any color, or NaN if neither could say. The chi-square attack's
+	 *         probabilities aren't on the same scale, so they're left out; it's only sure of
+	 *         itself when the others already are anyway.
+	 */
+	static double score(List<Detector> detectors) {
+		double score = Double.NaN;
+		for (Detector detector : detectors) {
+			if (!(detector instanceof RsDetector) && !(detector instanceof SpaDetector)) continue;
+			for (double e : detector.estimates()) {
+				if (!Double.isNaN(e) && (Double.isNaN(score) || e > score)) score = e;
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * An image and how suspicious it looks
+	 */
+	public static class Suspect {
+		public final File file;
+		public final double score;
+
+		Suspect(File file, double score) {
+			this.file = file;
+			this.score = score;
+		}
+	}
+
+	/** Lowest scores first, with NaN below everything */
+	private static final Comparator<Suspect> ASCENDING = new Comparator<Suspect>() {
+		public int compare(Suspect a, Suspect b) {
+			double x = Double.isNaN(a.score) ? Double.NEGATIVE_INFINITY : a.score;
+			double y = Double.isNaN(b.score) ? Double.NEGATIVE_INFINITY : b.score;
+			return Double.compare(x, y);
+		}
+	};
+
+	/**
+	 * Ranking keeps the highest scoring suspects seen so far in a heap with the lowest on top,
+	 * so it never holds more than it has to return.
+	 */
+	private static class Ranking {
+		private final int size;
+		private final PriorityQueue<Suspect> heap = new PriorityQueue<Suspect>(11, ASCENDING);
+
+		Ranking(int size) {
+			this.size = size;
+		}
+
+		synchronized void add(Suspect suspect) {
+			if (size <= 0) return;
+			if (heap.size() < size) heap.add(suspect);
+			else if (ASCENDING.compare(suspect, heap.peek()) > 0) {
+				heap.poll();
+				heap.add(suspect);
+			}
+		}
+
+		synchronized List<Suspect> sorted() {
+			List<Suspect> sorted = new ArrayList<Suspect>(heap);
+			Collections.sort(sorted, Collections.reverseOrder(ASCENDING));
+			return sorted;
+		}
+	}
+}
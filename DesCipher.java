@@ -0,0 +1,139 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * DesCipher is the cipher the first containers were written with: DesEncrypter's
+ * PBEWithMD5AndDES, salt and all, followed by a 16-byte HMAC-SHA256 tag over the container
+ * header and the ciphertext. DES has long been too weak to rely on, so new messages use
+ * AesGcmCipher; this is here so old images can still be read, and for anyone who needs
+ * to write images that older versions of Stego.jar can read.
+ */
+public class DesCipher implements StegCipher {
+
+	public static final int ID = 1;
+
+	private static final int TAG = 16;
+
+	// The same salt and iteration count as DesEncrypter
+	private static final byte[] SALT = {
+		(byte)0xA0, (byte)0xBC, (byte)0x52, (byte)0x8F,
+		(byte)0x66, (byte)0xAA, (byte)0x7F, (byte)0x69
+	};
+	private static final int ITERATIONS = 19;
+
+	/** Keys by passphrase, which saves a SecretKeyFactory lookup per message */
+	private static final LruCache<String, SecretKey> KEYS = new LruCache<String, SecretKey>(64);
+
+	private static final ThreadLocal<Cipher> DES = new ThreadLocal<Cipher>() {
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance("PBEWithMD5AndDES");
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("PBEWithMD5AndDES is not available", e);
+			}
+		}
+	};
+	private static final ThreadLocal<Mac> HMAC = new ThreadLocal<Mac>() {
+		protected Mac initialValue() {
+			try {
+				return Mac.getInstance("HmacSHA256");
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("HmacSHA256 is not available", e); // every JVM is required to have it
+			}
+		}
+	};
+
+	public int id() {
+		return ID;
+	}
+
+	public OutputStream encrypt(OutputStream out, byte[] header, String passphrase) throws IOException {
+		Cipher cipher = DES.get();
+		final Mac mac = HMAC.get();
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, key(passphrase), new PBEParameterSpec(SALT, ITERATIONS));
+			mac.init(macKey(passphrase));
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Can't set up DES: "+e.getMessage(), e);
+		}
+		mac.update(header);
+
+		// The tag covers the ciphertext, so it's computed on the way out of the cipher
+		OutputStream tagged = new FilterOutputStream(out) {
+			public void write(int b) throws IOException {
+				mac.update((byte)b);
+				out.write(b);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				mac.update(b, off, len);
+				out.write(b, off, len);
+			}
+
+			public void close() throws IOException {
+				out.write(mac.doFinal(), 0, TAG);
+				super.close();
+			}
+		};
+		return new CipherOutputStream(tagged, cipher);
+	}
+
+	public byte[] decrypt(byte[] data, int off, int len, byte[] header, String passphrase) {
+		if (len < TAG) return null;
+		try {
+			Mac mac = HMAC.get();
+			mac.init(macKey(passphrase));
+			mac.update(header);
+			mac.update(data, off, len-TAG);
+			byte[] expected = mac.doFinal();
+			int diff = 0;
+			for (int i = 0; i < TAG; ++i) diff |= expected[i] ^ data[off+len-TAG+i];
+			if (diff != 0) return null;
+
+			Cipher cipher = DES.get();
+			cipher.init(Cipher.DECRYPT_MODE, key(passphrase), new PBEParameterSpec(SALT, ITERATIONS));
+			return cipher.doFinal(data, off, len-TAG);
+		} catch (BadPaddingException e) {
+			return null;
+		} catch (IllegalBlockSizeException e) {
+			return null;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Can't decrypt with DES: "+e.getMessage(), e);
+		}
+	}
+
+	private static SecretKey key(String passphrase) throws GeneralSecurityException {
+		String name = AesGcmCipher.fingerprint(passphrase);
+		SecretKey key = KEYS.get(name);
+		if (key == null) {
+			key = SecretKeyFactory.getInstance("PBEWithMD5AndDES").generateSecret(new PBEKeySpec(passphrase.toCharArray()));
+			KEYS.put(name, key);
+		}
+		return key;
+	}
+
+	/**
+	 * The HMAC key is hashed from the passphrase separately from the cipher's, so the tag
+	 * doesn't give anything away about the cipher key.
+	 */
+	private static SecretKeySpec macKey(String passphrase) throws GeneralSecurityException {
+		MessageDigest sha = MessageDigest.getInstance("SHA-256");
+		sha.update("StegImage container MAC".getBytes(StandardCharsets.UTF_8));
+		return new SecretKeySpec(sha.digest(passphrase.getBytes(StandardCharsets.UTF_8)), "HmacSHA256");
+	}
+}
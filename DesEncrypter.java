@@ -83,4 +83,28 @@ public class DesEncrypter {
         }
         return null;
     }
+    /*
+     * Byte versions of the above, for messages that aren't text. The encrypted side is the
+     * same Base64 text either way (as ASCII bytes here), so a message encrypted with one
+     * version can be decrypted with the other.
+     */
+    public byte[] encrypt(byte[] plain) {
+        try {
+            return Base64Coder.encodeLines(ecipher.doFinal(plain)).getBytes("US-ASCII");
+        } catch (javax.crypto.BadPaddingException e) {
+        } catch (IllegalBlockSizeException e) {
+        } catch (UnsupportedEncodingException e) {
+        }
+        return null;
+    }
+
+    public byte[] decrypt(byte[] base64) {
+        try {
+            return dcipher.doFinal(Base64Coder.decodeLines(new String(base64, "US-ASCII")));
+        } catch (javax.crypto.BadPaddingException e) {
+        } catch (IllegalBlockSizeException e) {
+        } catch (UnsupportedEncodingException e) {
+        }
+        return null;
+    }
 }
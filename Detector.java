@@ -0,0 +1,65 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A Detector is one steganalysis statistic that Steganalysis runs over an image. Every
+ * detector looks at the same rows in the same pass, so adding another one costs its own
+ * arithmetic and nothing more: the image is only decoded and walked once.
+ *
+ * A detector only ever sees one row at a time, and keeps what it counts in arrays of
+ * primitives. Since the rows can be handed out in bands to different threads, each band
+ * gets a fresh detector of the same kind, and the bands are merged together at the end.
+ */
+public abstract class Detector {
+
+	/**
+	 * @return A short name for reports, like "rs"
+	 */
+	public abstract String name();
+
+	/**
+	 * @return A new detector of the same kind that hasn't counted anything yet
+	 */
+	public abstract Detector fresh();
+
+	/**
+	 * Counts one row of pixels, in the aaaaaaaarrrrrrrrggggggggbbbbbbbb form.
+	 * @param width The number of pixels in the row, which may be shorter than the array
+	 */
+	public abstract void row(int[] row, int width);
+
+	/**
+	 * Adds what another detector of the same kind counted into this one.
+	 */
+	public abstract void merge(Detector other);
+
+	/**
+	 * @return What the detector makes of the red, green and blue values, in that order. For
+	 *         most detectors that's the fraction of LSBs it thinks were replaced by a message,
+	 *         which can come out a little under 0 for a clean image; see each one for what it
+	 *         reports exactly. NaN if the image was too small to say.
+	 */
+	public abstract double[] estimates();
+
+	/**
+	 * @return The detectors analyze runs: the chi-square attack, RS analysis and sample pair
+	 *         analysis
+	 */
+	public static List<Detector> standard() {
+		return new ArrayList<Detector>(Arrays.asList(new ChiSquareDetector(), new RsDetector(), new SpaDetector()));
+	}
+
+	/**
+	 * @return The root of a*z*z + b*z + c = 0 that's closest to 0, which is the one RS and
+	 *         sample pair analysis want, or NaN if there isn't a real one. That happens
+	 *         when nearly every LSB was replaced and the counts are too noisy to solve.
+	 */
+	static double smallerRoot(double a, double b, double c) {
+		if (a == 0) return b == 0 ? Double.NaN : -c/b;
+		double disc = b*b - 4*a*c;
+		if (disc < 0) return Double.NaN;
+		double r1 = (-b + Math.sqrt(disc))/(2*a), r2 = (-b - Math.sqrt(disc))/(2*a);
+		return Math.abs(r1) <= Math.abs(r2) ? r1 : r2;
+	}
+}
@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+/**
+ * A PixelSet that stores visited positions in an open-addressed table of ints. It's used
+ * when a message only touches a small fraction of a large image, where a bitset over every
+ * pixel would be mostly empty. The table doubles whenever it gets half full.
+ */
+public class HashPixelSet implements PixelSet {
+
+	private static final int EMPTY = -1; // pixel positions are never negative
+
+	private final int capacity;
+	private int[] table;
+	private int shift; // 32 - log2(table.length), used to pick the top bits of the hash
+	private int size = 0;
+
+	/**
+	 * @param capacity The number of pixels in the image
+	 * @param expected The number of positions that will probably be inserted
+	 */
+	public HashPixelSet(int capacity, int expected) {
+		this.capacity = capacity;
+		int len = 16;
+		while (len < expected*2) len <<= 1;
+		allocate(len);
+	}
+
+	public boolean contains(int pos) {
+		int i = slot(pos), mask = table.length-1;
+		while (table[i] != EMPTY) {
+			if (table[i] == pos) return true;
+			i = (i+1) & mask;
+		}
+		return false;
+	}
+
+	public void insert(int pos) {
+		int i = slot(pos), mask = table.length-1;
+		while (table[i] != EMPTY) {
+			if (table[i] == pos) return;
+			i = (i+1) & mask;
+		}
+		table[i] = pos;
+		if (++size*2 > table.length) grow();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int nextFree(int pos) {
+		if (size >= capacity) return -1;
+		while (contains(pos)) pos = (pos+1)%capacity;
+		return pos;
+	}
+
+	private int slot(int pos) {
+		return (pos * 0x9E3779B9) >>> shift; // Fibonacci hashing spreads runs of neighbours apart
+	}
+
+	private void allocate(int len) {
+		table = new int[len];
+		Arrays.fill(table, EMPTY);
+		shift = 32 - Integer.numberOfTrailingZeros(len);
+	}
+
+	private void grow() {
+		int[] old = table;
+		allocate(old.length*2);
+		int mask = table.length-1;
+		for (int pos : old) {
+			if (pos == EMPTY) continue;
+			int i = slot(pos);
+			while (table[i] != EMPTY) i = (i+1) & mask;
+			table[i] = pos;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Just enough JSON for Stego.jar's line-oriented input and output: quoting strings, and
+ * parsing a single flat object whose values are strings, numbers, booleans or null. Values
+ * come back as their text (numbers and booleans unquoted, null as a Java null).
+ */
+public class Json {
+
+	//Prevent instantiation
+	private Json() {}
+
+	/**
+	 * @return s as a JSON string literal, quotes included
+	 */
+	public static String quote(String s) {
+		if (s == null) return "null";
+		StringBuilder out = new StringBuilder(s.length()+2);
+		out.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"': out.append("\\\""); break;
+			case '\\': out.append("\\\\"); break;
+			case '\n': out.append("\\n"); break;
+			case '\r': out.append("\\r"); break;
+			case '\t': out.append("\\t"); break;
+			default:
+				if (c < 0x20) out.append(String.format("\\u%04x", (int)c));
+				else out.append(c);
+			}
+		}
+		return out.append('"').toString();
+	}
+
+	/**
+	 * Parses something like {"op": "e", "in": "a.png", "level": 6}.
+	 * @throws IllegalArgumentException if the text isn't a flat JSON object
+	 */
+	public static Map<String, String> parseObject(String text) {
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		int[] pos = {skip(text, 0)};
+		expect(text, pos, '{');
+		if (peek(text, pos) == '}') {
+			pos[0]++;
+		}else {
+			while (true) {
+				String key = string(text, pos);
+				expect(text, pos, ':');
+				map.put(key, value(text, pos));
+				if (peek(text, pos) == ',') {
+					pos[0]++;
+					continue;
+				}
+				expect(text, pos, '}');
+				break;
+			}
+		}
+		if (skip(text, pos[0]) != text.length()) throw new IllegalArgumentException("Unexpected text after the JSON object.");
+		return map;
+	}
+
+	private static String value(String text, int[] pos) {
+		char c = peek(text, pos);
+		if (c == '"') return string(text, pos);
+		int start = pos[0];
+		while (pos[0] < text.length() && ",}: \t".indexOf(text.charAt(pos[0])) < 0) pos[0]++;
+		String word = text.substring(start, pos[0]);
+		if (word.equals("null")) return null;
+		if (word.equals("true") || word.equals("false") || word.matches("-?[0-9][0-9.eE+-]*")) return word;
+		throw new IllegalArgumentException("Only flat JSON objects are supported, but found: "+word);
+	}
+
+	private static String string(String text, int[] pos) {
+		expect(text, pos, '"');
+		StringBuilder out = new StringBuilder();
+		int i = pos[0];
+		while (true) {
+			if (i >= text.length()) throw new IllegalArgumentException("Unterminated JSON string.");
+			char c = text.charAt(i++);
+			if (c == '"') break;
+			if (c == '\\') {
+				if (i >= text.length()) throw new IllegalArgumentException("Unterminated JSON string.");
+				c = text.charAt(i++);
+				switch (c) {
+				case 'n': c = '\n'; break;
+				case 'r': c = '\r'; break;
+				case 't': c = '\t'; break;
+				case 'b': c = '\b'; break;
+				case 'f': c = '\f'; break;
+				case 'u':
+					if (i+4 > text.length()) throw new IllegalArgumentException("Bad \\u escape in JSON string.");
+					c = (char)Integer.parseInt(text.substring(i, i+4), 16);
+					i += 4;
+					break;
+				default: // \" \\ and \/ stand for themselves
+				}
+			}
+			out.append(c);
+		}
+		pos[0] = i;
+		return out.toString();
+	}
+
+	private static char peek(String text, int[] pos) {
+		pos[0] = skip(text, pos[0]);
+		if (pos[0] >= text.length()) throw new IllegalArgumentException("Unexpected end of JSON.");
+		return text.charAt(pos[0]);
+	}
+
+	private static void expect(String text, int[] pos, char c) {
+		if (peek(text, pos) != c) throw new IllegalArgumentException("Expected '"+c+"' at position "+pos[0]+" of the JSON.");
+		pos[0]++;
+	}
+
+	private static int skip(String text, int i) {
+		while (i < text.length() && Character.isWhitespace(text.charAt(i))) i++;
+		return i;
+	}
+}
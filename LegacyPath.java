@@ -0,0 +1,99 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * LegacyPath is the order readLegacy visits pixels in for one passphrase and image size.
+ * Working it out means drawing from a java.util.Random and probing a PixelSet for the next
+ * free pixel every time, all of it before a single bit is read, and a batch of pictures off
+ * the same camera read with the same passphrase works out exactly the same path every time.
+ * So paths are kept in a cache, and a read that finds one just walks an int[].
+ *
+ * The path only depends on the Random's seed and the number of pixels, so images that are
+ * 4000x3000 and 3000x4000 share one. Each is only worked out as far as anybody has asked
+ * for, and grows when somebody asks for more; growing it means running the Random through
+ * the positions that are already known again, but none of the probing. The cache holds at
+ * most CACHE_BYTES of positions, dropping the paths used longest ago first.
+ */
+final class LegacyPath {
+
+	/** How much memory the cached paths may take up in all: 64 MB, or an eighth of the heap if that's less */
+	static final long CACHE_BYTES = Math.min(64L << 20, Runtime.getRuntime().maxMemory()/8);
+
+	private static final LruCache<Long, LegacyPath> CACHE = new LruCache<Long, LegacyPath>(CACHE_BYTES, new LruCache.Weigher<LegacyPath>() {
+		public long weigh(LegacyPath path) {
+			return path.bytes();
+		}
+	});
+
+	private final int seed, size;
+	/** The 4 pixels the length is read from, which readLegacy doesn't mark as visited */
+	private final int[] head = new int[4];
+	private volatile int[] positions = new int[0];
+
+	private LegacyPath(int seed, int size) {
+		this.seed = seed;
+		this.size = size;
+		Random rand = new Random(seed);
+		for (int i = 0; i < 4; ++i) head[i] = rand.nextInt(size);
+	}
+
+	/**
+	 * @return The path for a passphrase through an image of size pixels
+	 */
+	static LegacyPath forPassphrase(String passphrase, int size) {
+		int seed = passphrase.hashCode();
+		Long key = ((long)seed << 32) | size;
+		LegacyPath path = CACHE.get(key);
+		if (path == null) {
+			path = new LegacyPath(seed, size);
+			CACHE.put(key, path);
+		}
+		return path;
+	}
+
+	/**
+	 * @return The i-th of the 4 pixels that hold the message length, i from 0 to 3
+	 */
+	int head(int i) {
+		return head[i];
+	}
+
+	/**
+	 * @return The first n pixels of the path after the length, or all of them if the image
+	 *         has fewer than n. The array may be longer than n, and mustn't be changed.
+	 */
+	int[] positions(int n) {
+		int[] known = positions;
+		if (known.length >= n || known.length == size) return known;
+		synchronized (this) {
+			known = positions;
+			if (known.length >= n || known.length == size) return known;
+			// Grow by at least half again, so reading longer and longer messages stays linear
+			positions = known = extend(known, (int)Math.min(size, Math.max(n, known.length + (long)known.length/2)));
+		}
+		CACHE.put(((long)seed << 32) | size, this); // to account for the new size
+		return known;
+	}
+
+	private int[] extend(int[] known, int n) {
+		Random rand = new Random(seed);
+		for (int i = 0; i < 4; ++i) rand.nextInt(size);
+		PixelSet visited = PixelSet.forDensity(size, n);
+		for (int pos : known) {
+			rand.nextInt(size);
+			visited.insert(pos);
+		}
+
+		int[] grown = Arrays.copyOf(known, n);
+		for (int i = known.length; i < n; ++i) {
+			int pos = visited.nextFree(rand.nextInt(size)); //See writeLegacy
+			visited.insert(pos);
+			grown[i] = pos;
+		}
+		return grown;
+	}
+
+	private long bytes() {
+		return 64 + positions.length*4L;
+	}
+}
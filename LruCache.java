@@ -0,0 +1,90 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small thread-safe map that forgets the entry used longest ago once it's full. The
+ * ciphers keep derived keys in one, since deriving a key from a passphrase is meant to be
+ * slow and a batch usually uses the same few passphrases over and over.
+ *
+ * Full can mean a number of entries, or, with a Weigher, a total weight such as bytes of
+ * memory, for caches whose values vary a lot in size.
+ */
+public class LruCache<K, V> {
+
+	/**
+	 * Says how much an entry counts towards the cache's limit.
+	 */
+	public interface Weigher<V> {
+		long weigh(V value);
+	}
+
+	private final Map<K, Node<V>> map = new LinkedHashMap<K, Node<V>>(16, 0.75f, true);
+	private final long limit;
+	private final Weigher<? super V> weigher;
+	private long weight = 0;
+
+	/**
+	 * @param capacity The most entries to keep
+	 */
+	public LruCache(int capacity) {
+		this(capacity, new Weigher<Object>() {
+			public long weigh(Object value) { return 1; }
+		});
+	}
+
+	/**
+	 * @param limit The most total weight to keep. An entry heavier than this on its own isn't
+	 *              kept at all.
+	 */
+	public LruCache(long limit, Weigher<? super V> weigher) {
+		if (limit < 1) throw new IllegalArgumentException("The limit must be at least 1.");
+		this.limit = limit;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * @return The value for key, or null if there isn't one
+	 */
+	public synchronized V get(K key) {
+		Node<V> node = map.get(key);
+		return node == null ? null : node.value;
+	}
+
+	/**
+	 * Adds or replaces the value for key. Putting a value that's already there again updates
+	 * its weight, for values that grow.
+	 */
+	public synchronized void put(K key, V value) {
+		Node<V> node = new Node<V>(value, weigher.weigh(value));
+		Node<V> old = node.weight > limit ? map.remove(key) : map.put(key, node);
+		if (old != null) weight -= old.weight;
+		if (node.weight > limit) return; // rather than throw everything else out first
+		weight += node.weight;
+		for (Iterator<Node<V>> it = map.values().iterator(); weight > limit && it.hasNext(); ) {
+			weight -= it.next().weight;
+			it.remove();
+		}
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	/**
+	 * @return The total weight of everything in the cache
+	 */
+	public synchronized long weight() {
+		return weight;
+	}
+
+	private static class Node<V> {
+		final V value;
+		final long weight;
+
+		Node(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+}
@@ -0,0 +1,359 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+
+/**
+ * MappedImage is a PixelBuffer over an uncompressed image file, memory-mapped with
+ * FileChannel.map instead of decoded. The pixels are read and written right where they sit
+ * in the file, so hiding a message in one only touches the pages the message lands in:
+ * there's no decoding the whole cover into memory, and no filtering and deflating the whole
+ * thing back out as a PNG afterwards. Reading a message back works the same way.
+ *
+ * The files it understands are the ones whose pixels are plain bytes at offsets that can be
+ * worked out from the header:
+ *   - BMP, 24 bits per pixel, uncompressed, bottom-up or top-down
+ *   - binary PPM (P6) with a maxval of 255
+ *   - TIFF, uncompressed 8-bit RGB in strips, with or without an unassociated alpha channel
+ *
+ * Anything else (palettes, 16-bit samples, grayscale, compression, tiles) makes open return
+ * null, and the image has to be decoded the usual way. Grayscale PGMs are left out on
+ * purpose: a gray pixel has one value, so it can't keep the different bits each of red,
+ * green and blue get.
+ */
+public class MappedImage extends PixelBuffer {
+
+	/** A mapping can't be bigger than 2 GB, so files are mapped in pieces of 1 GB */
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_BITS)-1;
+
+	private final MappedByteBuffer[] segments;
+	private final long[] rows;           // where each row starts in the file
+	private final int step;              // bytes per pixel
+	private final int red, green, blue, alpha; // where each sample is within a pixel, alpha -1 if there isn't one
+
+	private MappedImage(MappedByteBuffer[] segments, int width, int height, long[] rows, int step, int red, int green, int blue, int alpha) {
+		super(width, height);
+		this.segments = segments;
+		this.rows = rows;
+		this.step = step;
+		this.red = red;
+		this.green = green;
+		this.blue = blue;
+		this.alpha = alpha;
+	}
+
+	/**
+	 * Maps an image file.
+	 * @param writable Whether the pixels will be written. If so, every change goes straight
+	 *                 into the file.
+	 * @return The image, or null if it isn't a file this can map
+	 */
+	public static MappedImage open(File file, boolean writable) throws IOException {
+		if (!file.isFile()) return null;
+		RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size < 8) return null;
+
+			// Each segment runs a few bytes into the next, so a pixel that starts in one is all there
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int)((size-1) >>> SEGMENT_BITS)+1];
+			for (int i = 0; i < segments.length; ++i) {
+				long start = (long)i << SEGMENT_BITS;
+				segments[i] = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, start, Math.min(size-start, SEGMENT_MASK+1+8));
+			}
+			// The mappings stay good after the channel is closed
+			Parser parser = new Parser(segments, size);
+			MappedImage image = null;
+			try {
+				if (parser.u8(0) == 'B' && parser.u8(1) == 'M') image = parser.bmp();
+				else if (parser.u8(0) == 'P' && parser.u8(1) == '6') image = parser.ppm();
+				else if ((parser.u8(0) == 'I' && parser.u8(1) == 'I') || (parser.u8(0) == 'M' && parser.u8(1) == 'M')) image = parser.tiff();
+			}finally {
+				if (image == null) unmap(segments); // nobody else will ever use them
+			}
+			return image;
+		}finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return Whether a message can go from infile to outfile by patching a copy of it, which
+	 *         takes the two being the same kind of file and MappedImage understanding it
+	 */
+	public static boolean canPatch(File infile, File outfile) {
+		if (!suffix(infile).equals(suffix(outfile))) return false;
+		try {
+			MappedImage probe = open(infile, false);
+			if (probe == null) return false;
+			probe.close();
+			return true;
+		}catch (IOException e) {
+			return false; // whatever reads it the usual way can say what's wrong
+		}
+	}
+
+	private static String suffix(File file) {
+		String name = file.getName();
+		return name.substring(name.lastIndexOf('.')+1).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Hides a message in a copy of an uncompressed cover, in the same format as the cover.
+	 * The copy is patched in place, so the work is in proportion to the message, not the
+	 * image. If outfile is infile, the cover itself is changed. If the message can't be
+	 * written, for instance because it doesn't fit, the copy is deleted again rather than
+	 * left looking like a finished image.
+	 * @throws IOException if the cover isn't a file MappedImage understands
+	 */
+	public static void writeStego(File infile, byte[] message, String passphrase, StegOptions options, File outfile) throws IOException {
+		MappedImage probe = open(infile, false);
+		if (probe == null) throw new IOException("Can't patch "+infile+": it isn't an uncompressed BMP, PPM or TIFF.");
+		probe.close();
+		boolean copied = !infile.getCanonicalFile().equals(outfile.getCanonicalFile());
+		if (copied) Files.copy(infile.toPath(), outfile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		boolean done = false;
+		try {
+			MappedImage image = open(outfile, true);
+			try {
+				StegImage.writeStego(image, message, passphrase, options);
+				image.flush();
+			}finally {
+				image.close();
+			}
+			done = true;
+		}finally {
+			if (copied && !done) outfile.delete();
+		}
+	}
+
+	/**
+	 * Unmaps the file now, rather than whenever the garbage collector gets round to it. Until
+	 * then the mapping holds on to the file, which on Windows means it can't be replaced or
+	 * deleted. Nothing may touch the pixels afterwards.
+	 */
+	public void close() {
+		unmap(segments);
+	}
+
+	/**
+	 * Releases mappings the only ways the JVM allows: Unsafe.invokeCleaner from Java 9, and
+	 * the buffer's own cleaner before that. If neither is there, they're left to the garbage
+	 * collector.
+	 */
+	private static void unmap(MappedByteBuffer[] segments) {
+		for (MappedByteBuffer segment : segments) {
+			try {
+				try {
+					Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+					Field the = unsafe.getDeclaredField("theUnsafe");
+					the.setAccessible(true);
+					unsafe.getMethod("invokeCleaner", ByteBuffer.class).invoke(the.get(null), segment);
+				}catch (NoSuchMethodException e) { // Java 8
+					Method cleaner = segment.getClass().getMethod("cleaner");
+					cleaner.setAccessible(true);
+					Object c = cleaner.invoke(segment);
+					if (c != null) c.getClass().getMethod("clean").invoke(c);
+				}
+			}catch (ReflectiveOperationException e) {
+				return;
+			}catch (RuntimeException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Makes sure every change has reached the file.
+	 */
+	public void flush() {
+		for (MappedByteBuffer segment : segments) {
+			if (!segment.isReadOnly()) segment.force();
+		}
+	}
+
+	public boolean hasAlpha() {
+		return alpha >= 0;
+	}
+
+	public int getRGB(int pos) {
+		int y = pos/width;
+		long off = rows[y] + (long)(pos-y*width)*step;
+		MappedByteBuffer b = segments[(int)(off >>> SEGMENT_BITS)];
+		int i = (int)(off & SEGMENT_MASK);
+		int rgb = ((b.get(i+red) & 0xFF) << 16) | ((b.get(i+green) & 0xFF) << 8) | (b.get(i+blue) & 0xFF);
+		return rgb | (alpha < 0 ? 0xFF000000 : (b.get(i+alpha) & 0xFF) << 24);
+	}
+
+	public void setRGB(int pos, int rgb) {
+		int y = pos/width;
+		long off = rows[y] + (long)(pos-y*width)*step;
+		MappedByteBuffer b = segments[(int)(off >>> SEGMENT_BITS)];
+		int i = (int)(off & SEGMENT_MASK);
+		b.put(i+red, (byte)(rgb >> 16));
+		b.put(i+green, (byte)(rgb >> 8));
+		b.put(i+blue, (byte)rgb);
+		if (alpha >= 0) b.put(i+alpha, (byte)(rgb >> 24));
+	}
+
+	/**
+	 * Parser works out where the pixels are from a file's header.
+	 */
+	private static class Parser {
+		private final MappedByteBuffer[] segments;
+		private final long size;
+		private boolean little;   // TIFF byte order
+
+		Parser(MappedByteBuffer[] segments, long size) {
+			this.segments = segments;
+			this.size = size;
+		}
+
+		int u8(long off) {
+			if (off < 0 || off >= size) return -1;
+			return segments[(int)(off >>> SEGMENT_BITS)].get((int)(off & SEGMENT_MASK)) & 0xFF;
+		}
+
+		int u16(long off) {
+			return little ? u8(off) | (u8(off+1) << 8) : (u8(off) << 8) | u8(off+1);
+		}
+
+		long u32(long off) {
+			return little ? (u16(off) & 0xFFFFL) | ((long)u16(off+2) << 16) : ((long)u16(off) << 16) | (u16(off+2) & 0xFFFFL);
+		}
+
+		/**
+		 * @return The image, or null if its pixels don't fit in the file
+		 */
+		MappedImage image(int width, int height, long[] rows, long rowBytes, int step, int red, int green, int blue, int alpha) {
+			if (width <= 0 || height <= 0 || (long)width*height > Integer.MAX_VALUE) return null;
+			for (long row : rows) {
+				if (row < 0 || row+rowBytes > size) return null;
+			}
+			return new MappedImage(segments, width, height, rows, step, red, green, blue, alpha);
+		}
+
+		MappedImage bmp() {
+			little = true;
+			long data = u32(10), info = u32(14);
+			if (info < 40) return null; // the old OS/2 header, which nobody writes any more
+			int width = (int)u32(18), height = (int)u32(22);
+			if (u16(26) != 1 || u16(28) != 24 || u32(30) != 0) return null; // one plane, 24 bits, BI_RGB
+			boolean topDown = height < 0;
+			if (topDown) height = -height;
+			if (width <= 0 || height <= 0) return null;
+
+			long stride = ((long)width*3+3)/4*4; // rows are padded out to 4 bytes
+			if (height*stride > size) return null;
+			long[] rows = new long[height];
+			for (int y = 0; y < height; ++y) rows[y] = data + (topDown ? y : height-1-y)*stride;
+			return image(width, height, rows, (long)width*3, 3, 2, 1, 0, -1);
+		}
+
+		MappedImage ppm() {
+			long[] pos = {2};
+			long width = token(pos), height = token(pos), max = token(pos);
+			if (width <= 0 || height <= 0 || max != 255 || width > Integer.MAX_VALUE || height > Integer.MAX_VALUE) return null;
+			long data = pos[0]+1; // exactly one whitespace character after maxval
+			if (width*height*3 > size) return null;
+
+			long[] rows = new long[(int)height];
+			for (int y = 0; y < height; ++y) rows[y] = data + y*width*3;
+			return image((int)width, (int)height, rows, width*3, 3, 0, 1, 2, -1);
+		}
+
+		/**
+		 * Reads a PPM header number starting at pos[0], skipping whitespace and comments.
+		 * @return The number, or -1 if there isn't one. pos[0] is left just past it.
+		 */
+		private long token(long[] pos) {
+			int c = u8(pos[0]);
+			while (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '#') {
+				if (c == '#') {
+					while (c != '\n' && c != '\r' && c >= 0) c = u8(++pos[0]);
+				}else {
+					c = u8(++pos[0]);
+				}
+			}
+			if (c < '0' || c > '9') return -1;
+			long value = 0;
+			for (; c >= '0' && c <= '9'; c = u8(++pos[0])) {
+				value = value*10 + (c-'0');
+				if (value > Integer.MAX_VALUE) return -1;
+			}
+			return value;
+		}
+
+		MappedImage tiff() {
+			little = u8(0) == 'I';
+			if (u16(2) != 42) return null; // BigTIFF is 43, and isn't supported
+			long ifd = u32(4);
+			int entries = u16(ifd);
+			if (entries < 0) return null;
+
+			long width = -1, height = -1, rowsPerStrip = Long.MAX_VALUE;
+			int samples = 1, compression = 1, photometric = -1, planar = 1, extra = 0;
+			long[] offsets = null, bits = null;
+			for (int i = 0; i < entries; ++i) {
+				long entry = ifd+2+i*12L;
+				int tag = u16(entry);
+				long[] value = values(entry);
+				if (value == null) return null;
+				switch (tag) {
+				case 256: width = value[0]; break;
+				case 257: height = value[0]; break;
+				case 258: bits = value; break;
+				case 259: compression = (int)value[0]; break;
+				case 262: photometric = (int)value[0]; break;
+				case 273: offsets = value; break;
+				case 277: samples = (int)value[0]; break;
+				case 278: rowsPerStrip = value[0]; break;
+				case 284: planar = (int)value[0]; break;
+				case 322: return null; // tiled
+				case 338: extra = (int)value[0]; break;
+				}
+			}
+			if (width <= 0 || height <= 0 || width > Integer.MAX_VALUE || height > Integer.MAX_VALUE) return null;
+			if (compression != 1 || photometric != 2 || planar != 1 || offsets == null || bits == null) return null;
+			// RGB, or RGBA with an alpha that isn't premultiplied, which is what getRGB gives back
+			if (samples != 3 && !(samples == 4 && extra == 2)) return null;
+			for (long b : bits) {
+				if (b != 8) return null;
+			}
+			if (rowsPerStrip <= 0 || rowsPerStrip > height) rowsPerStrip = height;
+			if (offsets.length < (height+rowsPerStrip-1)/rowsPerStrip) return null;
+
+			long rowBytes = width*samples;
+			if (height*rowBytes > size) return null;
+			long[] rows = new long[(int)height];
+			for (int y = 0; y < height; ++y) rows[y] = offsets[(int)(y/rowsPerStrip)] + (y%rowsPerStrip)*rowBytes;
+			return image((int)width, (int)height, rows, rowBytes, samples, 0, 1, 2, samples == 4 ? 3 : -1);
+		}
+
+		/**
+		 * @return The values of a TIFF directory entry, which can be SHORTs or LONGs, or null
+		 *         if it's some other type or runs off the end of the file
+		 */
+		private long[] values(long entry) {
+			int type = u16(entry+2);
+			long count = u32(entry+4);
+			int width = type == 3 ? 2 : type == 4 ? 4 : 0;
+			if (width == 0) return new long[] {-1}; // nothing we need is stored any other way
+			if (count <= 0 || count > size/width) return null;
+			long at = count*width <= 4 ? entry+8 : u32(entry+8);
+			if (at+count*width > size) return null;
+			long[] value = new long[(int)count];
+			for (int i = 0; i < count; ++i) value[i] = width == 2 ? u16(at+i*2L) : u32(at+i*4L);
+			return value;
+		}
+	}
+}
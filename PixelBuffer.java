@@ -0,0 +1,192 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * PixelBuffer reads and writes pixels straight out of the array behind a BufferedImage.
+ * BufferedImage.getRGB and setRGB go through the ColorModel and check bounds on every call,
+ * which is most of the work when a message only touches one pixel at a time.
+ *
+ * Pixels are addressed by position (y*w + x) and always come back in the same
+ * aaaaaaaarrrrrrrrggggggggbbbbbbbb form that getRGB uses, so code written against getRGB
+ * gives exactly the same results. The common layouts from ImageIO (packed ints for RGB and
+ * ARGB, interleaved bytes for BGR and ABGR) are used in place. Anything else is copied into
+ * a TYPE_INT_RGB or TYPE_INT_ARGB image once, through getRGB, and image() returns the copy.
+ */
+public abstract class PixelBuffer {
+
+	protected final BufferedImage image;
+	protected final int width, height;
+
+	private PixelBuffer(BufferedImage image) {
+		this.image = image;
+		width = image.getWidth();
+		height = image.getHeight();
+	}
+
+	/**
+	 * For pixels that don't live in a BufferedImage at all, like MappedImage's. image() is
+	 * null for those, and they have to say for themselves whether they have alpha.
+	 */
+	PixelBuffer(int width, int height) {
+		this.image = null;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * @return A buffer over the image's pixels, converting the image first if its layout isn't
+	 *         one of the supported ones.
+	 */
+	public static PixelBuffer wrap(BufferedImage source) {
+		WritableRaster raster = source.getRaster();
+		if (raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+				&& raster.getDataBuffer().getNumBanks() == 1 && raster.getDataBuffer().getOffset() == 0) {
+			switch (source.getType()) {
+			case BufferedImage.TYPE_INT_ARGB:
+				if (scanline(source) == source.getWidth()) return new IntARGB(source);
+				break;
+			case BufferedImage.TYPE_INT_RGB:
+				if (scanline(source) == source.getWidth()) return new IntRGB(source);
+				break;
+			case BufferedImage.TYPE_3BYTE_BGR:
+				if (scanline(source) == source.getWidth()*3) return new ByteBGR(source);
+				break;
+			case BufferedImage.TYPE_4BYTE_ABGR:
+				if (scanline(source) == source.getWidth()*4) return new ByteABGR(source);
+				break;
+			}
+		}
+
+		// Convert everything else once up front, row by row so we don't need a w*h int[]
+		int w = source.getWidth(), h = source.getHeight();
+		boolean alpha = source.getColorModel().hasAlpha();
+		BufferedImage copy = new BufferedImage(w, h, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		int[] data = ((DataBufferInt)copy.getRaster().getDataBuffer()).getData();
+		for (int y = 0; y < h; ++y) {
+			source.getRGB(0, y, w, 1, data, y*w, w);
+		}
+		if (!alpha) {
+			for (int i = 0; i < data.length; ++i) data[i] &= 0xFFFFFF; // setRGB drops the alpha in an RGB image
+		}
+		return alpha ? new IntARGB(copy) : new IntRGB(copy);
+	}
+
+	private static int scanline(BufferedImage image) {
+		Object model = image.getRaster().getSampleModel();
+		if (model instanceof SinglePixelPackedSampleModel) return ((SinglePixelPackedSampleModel)model).getScanlineStride();
+		if (model instanceof ComponentSampleModel) return ((ComponentSampleModel)model).getScanlineStride();
+		return -1;
+	}
+
+	/**
+	 * @return The image the pixels live in. This is the original image unless wrap had to
+	 *         convert it, so it's the one to write out when you're done.
+	 */
+	public BufferedImage image() {
+		return image;
+	}
+
+	public int width() {
+		return width;
+	}
+
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * @return Whether the pixels have an alpha channel of their own
+	 */
+	public boolean hasAlpha() {
+		return image.getColorModel().hasAlpha();
+	}
+
+	/**
+	 * @return The pixel at pos, in the same format as BufferedImage.getRGB
+	 */
+	public abstract int getRGB(int pos);
+
+	/**
+	 * Sets the pixel at pos, the same way BufferedImage.setRGB would.
+	 */
+	public abstract void setRGB(int pos, int rgb);
+
+	/**
+	 * Copies row y into the first width() entries of row, like getRGB(0,y,w,1,row,0,w).
+	 */
+	public void getRow(int y, int[] row) {
+		for (int x = 0, pos = y*width; x < width; ++x, ++pos) row[x] = getRGB(pos);
+	}
+
+	static class IntARGB extends PixelBuffer {
+		private final int[] data;
+
+		IntARGB(BufferedImage image) {
+			super(image);
+			data = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		}
+
+		public int getRGB(int pos) { return data[pos]; }
+		public void setRGB(int pos, int rgb) { data[pos] = rgb; }
+		public void getRow(int y, int[] row) { System.arraycopy(data, y*width, row, 0, width); }
+	}
+
+	static class IntRGB extends PixelBuffer {
+		private final int[] data;
+
+		IntRGB(BufferedImage image) {
+			super(image);
+			data = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		}
+
+		public int getRGB(int pos) { return data[pos] | 0xFF000000; }
+		public void setRGB(int pos, int rgb) { data[pos] = rgb & 0xFFFFFF; }
+	}
+
+	static class ByteBGR extends PixelBuffer {
+		private final byte[] data;
+
+		ByteBGR(BufferedImage image) {
+			super(image);
+			data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+		}
+
+		public int getRGB(int pos) {
+			int i = pos*3;
+			return 0xFF000000 | ((data[i+2] & 0xFF) << 16) | ((data[i+1] & 0xFF) << 8) | (data[i] & 0xFF);
+		}
+
+		public void setRGB(int pos, int rgb) {
+			int i = pos*3;
+			data[i]   = (byte)rgb;
+			data[i+1] = (byte)(rgb >> 8);
+			data[i+2] = (byte)(rgb >> 16);
+		}
+	}
+
+	static class ByteABGR extends PixelBuffer {
+		private final byte[] data;
+
+		ByteABGR(BufferedImage image) {
+			super(image);
+			data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+		}
+
+		public int getRGB(int pos) {
+			int i = pos*4;
+			return ((data[i] & 0xFF) << 24) | ((data[i+3] & 0xFF) << 16) | ((data[i+2] & 0xFF) << 8) | (data[i+1] & 0xFF);
+		}
+
+		public void setRGB(int pos, int rgb) {
+			int i = pos*4;
+			data[i]   = (byte)(rgb >> 24);
+			data[i+1] = (byte)rgb;
+			data[i+2] = (byte)(rgb >> 8);
+			data[i+3] = (byte)(rgb >> 16);
+		}
+	}
+}
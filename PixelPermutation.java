@@ -0,0 +1,96 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * PixelPermutation is a keyed shuffle of the pixel positions [0, size). Unlike stepping a
+ * java.util.Random and probing past pixels that were already used, map(i) tells you where
+ * the i-th message pixel lives directly, without generating the ones before it and without
+ * remembering anything about them.
+ *
+ * It's a small Feistel network over the smallest even number of bits that covers size.
+ * A Feistel network is always a bijection, no matter what the round function is, so every
+ * index gets its own pixel. When the result falls outside of the image we just encrypt it
+ * again ("cycle walking") until it lands inside; because the bit domain is less than four
+ * times the image size, that takes fewer than four tries on average.
+ */
+public class PixelPermutation {
+
+	private static final int ROUNDS = 6;
+
+	private final int size;
+	private final int halfBits;
+	private final long halfMask;
+	private final long[] keys = new long[ROUNDS];
+
+	/**
+	 * @param key At least 8*ROUNDS bytes of key material
+	 * @param size The number of pixels in the image
+	 */
+	public PixelPermutation(byte[] key, int size) {
+		if (size <= 0) throw new IllegalArgumentException("The image has no pixels.");
+		this.size = size;
+
+		int bits = 2;
+		while ((1L << bits) < size) bits += 2;
+		halfBits = bits/2;
+		halfMask = (1L << halfBits) - 1;
+
+		for (int r = 0; r < ROUNDS; ++r) {
+			for (int b = 0; b < 8; ++b) keys[r] = (keys[r] << 8) | (key[r*8+b] & 0xFF);
+		}
+	}
+
+	/**
+	 * Derives the round keys from a passphrase, so the same passphrase always gives the same
+	 * pixel order for an image of the same size.
+	 */
+	public static PixelPermutation forPassphrase(String passphrase, int size) {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-512");
+			sha.update("StegImage pixel permutation".getBytes(StandardCharsets.UTF_8));
+			return new PixelPermutation(sha.digest(passphrase.getBytes(StandardCharsets.UTF_8)), size);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-512 is not available", e); // every JVM is required to have it
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i The index of a message pixel, 0 <= i < size
+	 * @return The pixel position (y*w + x) that the index is stored in
+	 */
+	public int map(int i) {
+		long x = i;
+		do {
+			x = encrypt(x);
+		} while (x >= size);
+		return (int)x;
+	}
+
+	private long encrypt(long x) {
+		long left = x >>> halfBits, right = x & halfMask, temp;
+		for (int r = 0; r < ROUNDS; ++r) {
+			temp = right;
+			right = left ^ (mix(right ^ keys[r]) & halfMask);
+			left = temp;
+		}
+		return (left << halfBits) | right;
+	}
+
+	/**
+	 * The finalizer from MurmurHash3. Every input bit affects every output bit, which is all
+	 * the round function needs.
+	 */
+	private static long mix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
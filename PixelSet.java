@@ -0,0 +1,45 @@
+/**
+ * A PixelSet keeps track of which pixel positions (y*w + x) have already been visited
+ * while jumping around an image. Every operation is constant time (or close to it), so
+ * writing and reading a message is linear in the length of the message.
+ *
+ * Two implementations are available: a bitset over the whole image, and an open-addressed
+ * hash set that only stores the positions actually visited. forDensity picks whichever
+ * one uses less memory for the expected number of visits.
+ */
+public interface PixelSet {
+
+	/**
+	 * @return true if pos has already been inserted
+	 */
+	boolean contains(int pos);
+
+	/**
+	 * Marks pos as visited. Inserting a position twice has no effect.
+	 */
+	void insert(int pos);
+
+	/**
+	 * @return the number of distinct positions inserted so far
+	 */
+	int size();
+
+	/**
+	 * Finds the first free position at or after pos, wrapping around to 0 at the end of the
+	 * image. This is the same as stepping pos = (pos+1)%size until !contains(pos).
+	 * @return the free position, or -1 if every position has been visited
+	 */
+	int nextFree(int pos);
+
+	/**
+	 * Creates the cheapest set for an image with size pixels when about expected of them
+	 * will be visited. The bitset costs size/8 bytes no matter what, while the hash set costs
+	 * roughly 16 bytes per visited pixel, so the hash set wins for sparse messages.
+	 * @param size The number of pixels in the image
+	 * @param expected The number of pixels that will probably be visited
+	 */
+	static PixelSet forDensity(int size, int expected) {
+		if ((long)expected*128 < size) return new HashPixelSet(size, expected);
+		return new BitPixelSet(size);
+	}
+}
@@ -0,0 +1,216 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * PngRowSource decodes a PNG file one row at a time, so only the current and previous rows
+ * are ever in memory. ImageIO's PNG reader can't do that: even with a source region it
+ * inflates the whole image on every call.
+ *
+ * Only the kind of PNG that Stego.jar writes is handled here: 8-bit RGB or RGBA, not
+ * interlaced, with no color profile or transparency chunk that would make ImageIO hand back
+ * different pixel values. open returns null for anything else so the caller can fall back
+ * to ImageIO.
+ */
+public class PngRowSource implements RowSource {
+
+	private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+	private static final int IHDR = 0x49484452, IDAT = 0x49444154, IEND = 0x49454E44;
+	private static final int ICCP = 0x69434350, TRNS = 0x74524E53;
+
+	private final DataInputStream in;
+	private final Inflater inflater = new Inflater();
+	private final InputStream pixels;
+	private final int width, height, channels;
+	private byte[] prev, curr;
+	private int y = 0;
+
+	private PngRowSource(DataInputStream in, int width, int height, int channels, int firstIdatLength) {
+		this.in = in;
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+		pixels = new InflaterInputStream(new IdatStream(in, firstIdatLength), inflater, 65536);
+		prev = new byte[width*channels+1];
+		curr = new byte[width*channels+1];
+	}
+
+	/**
+	 * @return A row source for the file, or null if it isn't a PNG this class can decode
+	 */
+	public static PngRowSource open(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		try {
+			if (in.readLong() != SIGNATURE) return close(in);
+			int length = in.readInt();
+			if (in.readInt() != IHDR || length != 13) return close(in);
+			int width = in.readInt(), height = in.readInt();
+			int depth = in.readUnsignedByte(), color = in.readUnsignedByte();
+			in.readUnsignedByte(); // compression, always deflate
+			in.readUnsignedByte(); // filter method, always adaptive
+			int interlace = in.readUnsignedByte();
+			in.readInt(); // CRC
+
+			if (depth != 8 || (color != 2 && color != 6) || interlace != 0) return close(in);
+			if (width <= 0 || height <= 0 || (long)width*4+1 > Integer.MAX_VALUE) return close(in);
+
+			// Skip ancillary chunks up to the image data, bailing out on the ones ImageIO
+			// would use to change the pixel values
+			while (true) {
+				length = in.readInt();
+				int type = in.readInt();
+				if (type == IDAT) return new PngRowSource(in, width, height, color == 6 ? 4 : 3, length);
+				if (type == ICCP || type == TRNS || type == IEND) return close(in);
+				skip(in, (long)length+4);
+			}
+		} catch (EOFException e) {
+			return close(in);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	private static PngRowSource close(InputStream in) throws IOException {
+		in.close();
+		return null;
+	}
+
+	private static void skip(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() < 0) throw new EOFException();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	public int width() {
+		return width;
+	}
+
+	public int height() {
+		return height;
+	}
+
+	public boolean hasAlpha() {
+		return channels == 4;
+	}
+
+	public void readRow(int[] row) throws IOException {
+		if (y >= height) throw new IOException("There are no rows left in the image.");
+		byte[] temp = prev;
+		prev = curr;
+		curr = temp;
+		readFully(curr);
+		unfilter(curr, prev, channels);
+
+		if (channels == 3) {
+			for (int x = 0, i = 1; x < width; ++x, i += 3) {
+				row[x] = 0xFF000000 | ((curr[i] & 0xFF) << 16) | ((curr[i+1] & 0xFF) << 8) | (curr[i+2] & 0xFF);
+			}
+		}else {
+			for (int x = 0, i = 1; x < width; ++x, i += 4) {
+				row[x] = ((curr[i+3] & 0xFF) << 24) | ((curr[i] & 0xFF) << 16) | ((curr[i+1] & 0xFF) << 8) | (curr[i+2] & 0xFF);
+			}
+		}
+		y++;
+	}
+
+	private void readFully(byte[] b) throws IOException {
+		for (int off = 0, n; off < b.length; off += n) {
+			n = pixels.read(b, off, b.length-off);
+			if (n < 0) throw new EOFException("The PNG image data ended early.");
+		}
+	}
+
+	/**
+	 * Undoes the PNG filter on a row. line[0] is the filter type and the pixel bytes follow
+	 * it; prev is the unfiltered row above (all zeroes for the first row).
+	 */
+	static void unfilter(byte[] line, byte[] prev, int bpp) throws IOException {
+		int len = line.length;
+		switch (line[0]) {
+		case 0: // None
+			break;
+		case 1: // Sub
+			for (int i = 1+bpp; i < len; ++i) line[i] += line[i-bpp];
+			break;
+		case 2: // Up
+			for (int i = 1; i < len; ++i) line[i] += prev[i];
+			break;
+		case 3: // Average
+			for (int i = 1; i < len; ++i) {
+				int left = i > bpp ? line[i-bpp] & 0xFF : 0;
+				line[i] += (left + (prev[i] & 0xFF)) >>> 1;
+			}
+			break;
+		case 4: // Paeth
+			for (int i = 1; i < len; ++i) {
+				int a = i > bpp ? line[i-bpp] & 0xFF : 0;
+				int b = prev[i] & 0xFF;
+				int c = i > bpp ? prev[i-bpp] & 0xFF : 0;
+				int p = a + b - c, pa = Math.abs(p-a), pb = Math.abs(p-b), pc = Math.abs(p-c);
+				line[i] += (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+			}
+			break;
+		default:
+			throw new IOException("Unknown PNG filter type "+line[0]);
+		}
+	}
+
+	public void close() throws IOException {
+		inflater.end();
+		in.close();
+	}
+
+	/**
+	 * Strings the payloads of consecutive IDAT chunks together into one stream, which is
+	 * what the zlib data inside them is split across.
+	 */
+	private static class IdatStream extends InputStream {
+		private final DataInputStream in;
+		private int left; // bytes left in the current chunk, -1 once the IDATs are over
+
+		IdatStream(DataInputStream in, int length) {
+			this.in = in;
+			left = length;
+		}
+
+		private boolean nextChunk() throws IOException {
+			while (left == 0) {
+				in.readInt(); // CRC of the chunk we just finished
+				int length = in.readInt();
+				if (in.readInt() != IDAT) {
+					left = -1;
+					return false;
+				}
+				left = length;
+			}
+			return left > 0;
+		}
+
+		public int read() throws IOException {
+			if (!nextChunk()) return -1;
+			left--;
+			return in.read();
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (!nextChunk()) return -1;
+			int n = in.read(b, off, Math.min(len, left));
+			if (n < 0) throw new EOFException("The PNG file ended in the middle of a chunk.");
+			left -= n;
+			return n;
+		}
+	}
+}
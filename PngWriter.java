@@ -0,0 +1,326 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PngWriter writes 8-bit RGB and RGBA PNGs, the kind PngRowSource reads, and is what Stego
+ * saves every picture with. ImageIO's writer filters and deflates the whole image on one
+ * thread at a fixed level, which makes it the slowest part of hiding a message in a big
+ * cover. This one does it the way pigz does:
+ *
+ *   - The image is cut into blocks of rows, about BLOCK bytes each, and every block is
+ *     filtered and deflated on its own, so they can all be worked on at once.
+ *   - Each block's deflater is primed with the last 32 KB of the block before it, so matches
+ *     can still reach back across the cut and the output hardly grows.
+ *   - Every block but the last ends with a sync flush, which leaves the stream on a byte
+ *     boundary, so the pieces can simply be written out one after another as IDAT chunks
+ *     and the whole thing is one ordinary zlib stream. The Adler-32 of the whole image is
+ *     put together from the blocks' own.
+ *
+ * The blocks are the same however many threads there are, so the file is too.
+ *
+ * How hard to compress (StegOptions.setPngLevel) and which PNG filter to use on each row
+ * (StegOptions.setPngFilter) can be turned down for jobs that care more about speed than
+ * file size.
+ */
+public class PngWriter {
+
+	/** The PNG row filters, plus FILTER_ADAPTIVE to pick whichever suits each row best */
+	public static final int FILTER_NONE = 0, FILTER_SUB = 1, FILTER_UP = 2, FILTER_AVERAGE = 3, FILTER_PAETH = 4, FILTER_ADAPTIVE = 5;
+
+	private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+	private static final int IHDR = 0x49484452, IDAT = 0x49444154, IEND = 0x49454E44;
+
+	/** Roughly how many bytes of filtered rows go into each block */
+	private static final int BLOCK = 1 << 18;
+	/** How far back deflate can look, so how much of the last block each one is primed with */
+	private static final int WINDOW = 32768;
+
+	//Prevent instantiation
+	private PngWriter() {}
+
+	/**
+	 * Writes an image to a file as a PNG, replacing whatever was there.
+	 */
+	public static void write(BufferedImage image, File file, StegOptions options) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+		try {
+			write(RowSource.of(image), out, options);
+		}finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the rows of a source out as a PNG, reading them in order and only as fast as
+	 * they're compressed, so at most a few blocks' worth are ever in memory. It's RGBA if the
+	 * source has alpha, otherwise RGB.
+	 * @param out Where to write the PNG. It's flushed but not closed.
+	 */
+	public static void write(RowSource source, OutputStream out, StegOptions options) throws IOException {
+		int w = source.width(), h = source.height(), channels = source.hasAlpha() ? 4 : 3;
+		if ((long)w*channels >= Integer.MAX_VALUE) throw new IOException("The picture is too wide to write as a PNG.");
+		int rowBytes = w*channels;
+		int context = (WINDOW+rowBytes)/(rowBytes+1);        // how many filtered rows it takes to fill a window
+		int rowsPerBlock = Math.max(context+1, BLOCK/(rowBytes+1)); // so a block always holds the next one's context
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeLong(SIGNATURE);
+		byte[] header = new byte[13];
+		putInt(header, 0, w);
+		putInt(header, 4, h);
+		header[8] = 8;                              // bits per sample
+		header[9] = (byte)(channels == 4 ? 6 : 2);  // RGBA or RGB; compression, filter method and interlacing are all 0
+		chunk(data, IHDR, header, 0, header.length);
+
+		boolean parallel = options.getParallelism() > 1;
+		ArrayDeque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+		int[] row = new int[w];
+		byte[] last = null;
+		long adler = 1;
+		for (int y = 0; y < h; y += rowsPerBlock) {
+			// Each block gets its own copy of the rows before it, to filter for its dictionary
+			int rows = Math.min(rowsPerBlock, h-y), before = y == 0 ? 0 : context+1;
+			byte[] raw = new byte[(before+rows)*rowBytes];
+			if (before > 0) System.arraycopy(last, last.length-before*rowBytes, raw, 0, before*rowBytes);
+			for (int r = before; r < before+rows; ++r) {
+				source.readRow(row);
+				toBytes(row, w, channels, raw, r*rowBytes);
+			}
+			last = raw;
+
+			Block block = new Block(raw, before, rowBytes, channels, options.getPngLevel(), options.getPngFilter(), y == 0, y+rows == h);
+			if (parallel) {
+				pending.add(options.pool().submit(block));
+				if (pending.size() < options.getParallelism()*2) continue;
+				block = finish(pending.poll());
+			}else {
+				block.call();
+			}
+			adler = writeBlock(data, block, adler);
+		}
+		while (!pending.isEmpty()) adler = writeBlock(data, finish(pending.poll()), adler);
+
+		chunk(data, IEND, header, 0, 0);
+		data.flush();
+	}
+
+	private static Block finish(Future<Block> future) throws IOException {
+		try {
+			return future.get();
+		}catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing the PNG.");
+		}catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Writes a block out as an IDAT chunk, with the zlib stream's checksum on the end if it's
+	 * the last one.
+	 * @return The Adler-32 of everything up to and including this block
+	 */
+	private static long writeBlock(DataOutputStream data, Block block, long adler) throws IOException {
+		adler = combine(adler, block.adler, block.length);
+		if (block.last) putInt(block.out, block.size, (int)adler);
+		chunk(data, IDAT, block.out, 0, block.size + (block.last ? 4 : 0));
+		return adler;
+	}
+
+	/**
+	 * Block filters and deflates one block of rows.
+	 */
+	private static class Block implements Callable<Block> {
+		private final byte[] raw;
+		private final int before, rowBytes, bpp, level, filter;
+		final boolean first, last;
+		byte[] out;
+		int size;           // how much of out is the deflated block
+		long adler;         // the Adler-32 and length of the filtered rows that went into it
+		int length;
+
+		/**
+		 * @param raw The block's rows, unfiltered, after before rows that came before it
+		 */
+		Block(byte[] raw, int before, int rowBytes, int bpp, int level, int filter, boolean first, boolean last) {
+			this.raw = raw;
+			this.before = before;
+			this.rowBytes = rowBytes;
+			this.bpp = bpp;
+			this.level = level;
+			this.filter = filter;
+			this.first = first;
+			this.last = last;
+		}
+
+		public Block call() {
+			// The first row that came before is only there to filter the second one against
+			int skip = before > 0 ? 1 : 0, rows = raw.length/rowBytes - skip;
+			byte[] filtered = new byte[rows*(rowBytes+1)];
+			byte[] scratch = filter == FILTER_ADAPTIVE ? new byte[rowBytes] : null;
+			for (int r = 0; r < rows; ++r) {
+				int cur = (r+skip)*rowBytes, prev = r+skip > 0 ? cur-rowBytes : -1;
+				filterRow(raw, cur, prev, rowBytes, bpp, filter, filtered, r*(rowBytes+1), scratch);
+			}
+			int dictEnd = (before-skip)*(rowBytes+1);
+			length = filtered.length - dictEnd;
+			Adler32 sum = new Adler32();
+			sum.update(filtered, dictEnd, length);
+			adler = sum.getValue();
+
+			Deflater deflater = new Deflater(level, true);
+			try {
+				// Filtered rows compress better with FILTERED, which is what libpng uses too
+				deflater.setStrategy(filter == FILTER_NONE ? Deflater.DEFAULT_STRATEGY : Deflater.FILTERED);
+				out = new byte[length + length/8 + 64];
+				// A new strategy only takes effect on the next deflate, which then returns early, so
+				// get that out of the way before there's anything to compress
+				deflater.deflate(out, 0, out.length);
+				if (dictEnd > 0) {
+					int dict = Math.min(dictEnd, WINDOW);
+					deflater.setDictionary(filtered, dictEnd-dict, dict);
+				}
+				deflater.setInput(filtered, dictEnd, length);
+				if (first) {
+					out[size++] = 0x78;  // the zlib header: deflate with a 32 KB window
+					out[size++] = (byte)(level < 2 ? 0x01 : level < 6 ? 0x5E : level == 6 ? 0x9C : 0xDA);
+				}
+				if (last) deflater.finish();
+				while (true) {
+					if (out.length-size < 4+64) out = Arrays.copyOf(out, out.length*2); // room for the checksum too
+					int space = out.length-4-size;
+					int n = last ? deflater.deflate(out, size, space) : deflater.deflate(out, size, space, Deflater.SYNC_FLUSH);
+					size += n;
+					if (last ? deflater.finished() : n < space) break;
+				}
+			}finally {
+				deflater.end();
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Filters one row, raw[cur, cur+rowBytes), against the row before it at prev (or nothing,
+	 * if prev is -1), into out[off], filter type first.
+	 */
+	private static void filterRow(byte[] raw, int cur, int prev, int rowBytes, int bpp, int filter, byte[] out, int off, byte[] scratch) {
+		if (filter != FILTER_ADAPTIVE) {
+			out[off] = (byte)filter;
+			filter(raw, cur, prev, rowBytes, bpp, filter, out, off+1);
+			return;
+		}
+		// The usual heuristic: the filter whose output, as signed bytes, adds up smallest
+		long best = Long.MAX_VALUE;
+		for (int type = FILTER_NONE; type <= FILTER_PAETH; ++type) {
+			filter(raw, cur, prev, rowBytes, bpp, type, scratch, 0);
+			long sum = 0;
+			for (int i = 0; i < rowBytes; ++i) sum += Math.abs(scratch[i]);
+			if (sum < best) {
+				best = sum;
+				out[off] = (byte)type;
+				System.arraycopy(scratch, 0, out, off+1, rowBytes);
+			}
+		}
+	}
+
+	private static void filter(byte[] raw, int cur, int prev, int rowBytes, int bpp, int type, byte[] out, int off) {
+		// Against the row before the first one, everything is 0, so Up is None and Paeth is Sub
+		if (prev < 0 && type == FILTER_UP) type = FILTER_NONE;
+		if (prev < 0 && type == FILTER_PAETH) type = FILTER_SUB;
+		int i = 0;
+		switch (type) {
+		case FILTER_NONE:
+			System.arraycopy(raw, cur, out, off, rowBytes);
+			break;
+		case FILTER_SUB:
+			for (; i < bpp; ++i) out[off+i] = raw[cur+i];
+			for (; i < rowBytes; ++i) out[off+i] = (byte)(raw[cur+i] - raw[cur+i-bpp]);
+			break;
+		case FILTER_UP:
+			for (; i < rowBytes; ++i) out[off+i] = (byte)(raw[cur+i] - raw[prev+i]);
+			break;
+		case FILTER_AVERAGE:
+			if (prev < 0) {
+				for (; i < bpp; ++i) out[off+i] = raw[cur+i];
+				for (; i < rowBytes; ++i) out[off+i] = (byte)(raw[cur+i] - ((raw[cur+i-bpp] & 0xFF) >> 1));
+			}else {
+				for (; i < bpp; ++i) out[off+i] = (byte)(raw[cur+i] - ((raw[prev+i] & 0xFF) >> 1));
+				for (; i < rowBytes; ++i) out[off+i] = (byte)(raw[cur+i] - (((raw[cur+i-bpp] & 0xFF) + (raw[prev+i] & 0xFF)) >> 1));
+			}
+			break;
+		case FILTER_PAETH:
+			for (; i < bpp; ++i) out[off+i] = (byte)(raw[cur+i] - raw[prev+i]); // a and c are 0, so it's b
+			for (; i < rowBytes; ++i) out[off+i] = (byte)(raw[cur+i] - paeth(raw[cur+i-bpp] & 0xFF, raw[prev+i] & 0xFF, raw[prev+i-bpp] & 0xFF));
+			break;
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a+b-c, pa = Math.abs(p-a), pb = Math.abs(p-b), pc = Math.abs(p-c);
+		if (pa <= pb && pa <= pc) return a;
+		return pb <= pc ? b : c;
+	}
+
+	private static void toBytes(int[] row, int w, int channels, byte[] out, int off) {
+		for (int x = 0; x < w; ++x) {
+			int rgb = row[x];
+			out[off++] = (byte)(rgb >> 16);
+			out[off++] = (byte)(rgb >> 8);
+			out[off++] = (byte)rgb;
+			if (channels == 4) out[off++] = (byte)(rgb >>> 24);
+		}
+	}
+
+	/**
+	 * @return The Adler-32 of two pieces of data one after the other, from each one's own,
+	 *         the same way zlib's adler32_combine works it out
+	 */
+	static long combine(long adler1, long adler2, long length2) {
+		final long base = 65521;
+		long rem = length2 % base;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = rem*sum1 % base;
+		sum1 += (adler2 & 0xFFFF) + base - 1;
+		sum2 += (adler1 >>> 16) + (adler2 >>> 16) + base - rem;
+		if (sum1 >= base) sum1 -= base;
+		if (sum1 >= base) sum1 -= base;
+		if (sum2 >= base*2) sum2 -= base*2;
+		if (sum2 >= base) sum2 -= base;
+		return sum1 | (sum2 << 16);
+	}
+
+	private static void chunk(DataOutputStream out, int type, byte[] b, int off, int len) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(type >>> 24);
+		crc.update(type >>> 16);
+		crc.update(type >>> 8);
+		crc.update(type);
+		crc.update(b, off, len);
+		out.writeInt(len);
+		out.writeInt(type);
+		out.write(b, off, len);
+		out.writeInt((int)crc.getValue());
+	}
+
+	private static void putInt(byte[] b, int off, int value) {
+		b[off]   = (byte)(value >>> 24);
+		b[off+1] = (byte)(value >>> 16);
+		b[off+2] = (byte)(value >>> 8);
+		b[off+3] = (byte)value;
+	}
+}
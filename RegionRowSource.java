@@ -0,0 +1,121 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * RegionRowSource reads an image through an ImageReader a band of rows at a time, using
+ * ImageReadParam.setSourceRegion, so only one band is ever decoded and in memory.
+ *
+ * That's only a win when the reader can jump straight to a band. Most readers (PNG, JPEG)
+ * decode everything before the region on every call, which would make reading the whole
+ * image in bands quadratic. For those the band runs all the way to the limit instead, which
+ * is the bottom of the image unless the caller says it needs less, so the rows past the
+ * limit are never decoded at all.
+ */
+public class RegionRowSource implements RowSource {
+
+	/** Roughly how many pixels to decode per band */
+	private static final int BAND_PIXELS = 1 << 20;
+
+	private final ImageInputStream stream;
+	private final ImageReader reader;
+	private final ImageReadParam param;
+	private final int width, height, rows;
+	private final boolean easy;            // whether the reader can jump straight to a band
+	private final boolean alpha;
+	private int limit;
+	private PixelBuffer band;
+	private int bandY = 0, bandRows = 0; // the first row of the band and how many it holds
+	private int y = 0;
+
+	private RegionRowSource(ImageInputStream stream, ImageReader reader) throws IOException {
+		this.stream = stream;
+		this.reader = reader;
+		param = reader.getDefaultReadParam();
+		width = reader.getWidth(0);
+		height = reader.getHeight(0);
+		easy = reader.isRandomAccessEasy(0);
+		// ImageIO.read decodes to the first of these, so that's what the bands will be too
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+		alpha = types.hasNext() && types.next().getColorModel().hasAlpha();
+		limit = height;
+
+		// Line the bands up with the file's own strips or tiles when it has them
+		int tile = reader.isImageTiled(0) ? reader.getTileHeight(0) : 1;
+		rows = Math.max(tile, Math.max(1, BAND_PIXELS/width)/tile*tile);
+	}
+
+	/**
+	 * @return A row source for the file, or null if ImageIO has no reader for it
+	 */
+	public static RegionRowSource open(File file) throws IOException {
+		ImageInputStream stream = ImageIO.createImageInputStream(file);
+		if (stream == null) throw new IOException("Can't open "+file);
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (readers.hasNext()) {
+				ImageReader reader = readers.next();
+				reader.setInput(stream, true, true);
+				if (reader.getNumImages(false) != 0) return new RegionRowSource(stream, reader);
+				reader.dispose();
+			}
+		} catch (IOException e) {
+			stream.close();
+			throw e;
+		}
+		stream.close();
+		return null;
+	}
+
+	/**
+	 * @return Whether the image really is read a band at a time. If the reader can't jump
+	 *         straight to a band, everything down to the limit is decoded in one go, which
+	 *         without a limit is the whole image.
+	 */
+	public boolean isBanded() {
+		return easy;
+	}
+
+	public int width() {
+		return width;
+	}
+
+	public int height() {
+		return height;
+	}
+
+	public boolean hasAlpha() {
+		return alpha;
+	}
+
+	public void readRow(int[] row) throws IOException {
+		if (y >= height) throw new IOException("There are no rows left in the image.");
+		if (y >= bandY+bandRows) {
+			bandY = y;
+			int end = y < limit ? limit : height; // once past the limit, there's no telling where to stop
+			bandRows = easy ? Math.min(rows, end-y) : end-y;
+			param.setSourceRegion(new Rectangle(0, bandY, width, bandRows));
+			BufferedImage image = reader.read(0, param);
+			band = PixelBuffer.wrap(image);
+		}
+		band.getRow(y-bandY, row);
+		y++;
+	}
+
+	public void limit(int rows) {
+		limit = Math.max(1, Math.min(height, rows));
+	}
+
+	public void close() throws IOException {
+		reader.dispose();
+		stream.close();
+	}
+}
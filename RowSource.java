@@ -0,0 +1,105 @@
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A RowSource hands out the pixels of an image one row at a time, top to bottom, in the
+ * same aaaaaaaarrrrrrrrggggggggbbbbbbbb form that BufferedImage.getRGB uses. Anything that
+ * only needs to look at each row once (dumping the LSBs, for example) can use one to avoid
+ * holding the whole decoded image in memory.
+ */
+public interface RowSource extends Closeable {
+
+	int width();
+
+	int height();
+
+	/**
+	 * @return Whether the image has an alpha channel, which decides whether PixelBuffer.wrap
+	 *         (and so writeStego) would give back an RGB or an ARGB image
+	 */
+	boolean hasAlpha();
+
+	/**
+	 * Reads the next row into row[0, width()).
+	 * @throws IOException if the image can't be decoded or there are no rows left
+	 */
+	void readRow(int[] row) throws IOException;
+
+	/**
+	 * Says that no rows past the first rows rows will be read, at least for now, so a source
+	 * that decodes a band at a time needn't decode any further than that. It's only a hint;
+	 * it can be raised later, and reading past it still works.
+	 */
+	default void limit(int rows) {}
+
+	/**
+	 * Opens an image file in the cheapest way available: PNGs we can decode ourselves are
+	 * inflated a row at a time, uncompressed files MappedImage understands are mapped, other
+	 * formats that ImageIO can read at random (BMP, TIFF, ...) are read a band of rows at a time, and everything else is decoded in one go, or only down
+	 * to the limit if one is set before the first row is read.
+	 */
+	static RowSource open(File file) throws IOException {
+		RowSource source = PngRowSource.open(file);
+		if (source == null) {
+			MappedImage mapped = MappedImage.open(file, false);
+			if (mapped != null) source = of(mapped);
+		}
+		if (source == null) source = RegionRowSource.open(file);
+		if (source == null) {
+			BufferedImage image = ImageIO.read(file);
+			if (image == null) throw new IOException("Can't read "+file+": unknown image format.");
+			source = of(image);
+		}
+		return source;
+	}
+
+	/**
+	 * open, but only for files that can be read without ever decoding the whole image at
+	 * once: PNGs PngRowSource can decode, files MappedImage can map and formats whose ImageIO
+	 * reader can jump straight to a band of rows.
+	 * @return The source, or null if the file can only be read by decoding all of it, which
+	 *         goes for JPEGs and any other PNG
+	 */
+	static RowSource openBanded(File file) throws IOException {
+		RowSource source = PngRowSource.open(file);
+		if (source != null) return source;
+		MappedImage mapped = MappedImage.open(file, false);
+		if (mapped != null) return of(mapped);
+		RegionRowSource region = RegionRowSource.open(file);
+		if (region == null) return null;
+		if (region.isBanded()) return region;
+		region.close();
+		return null;
+	}
+
+	/**
+	 * @return A RowSource over an image that's already in memory
+	 */
+	static RowSource of(BufferedImage image) {
+		return of(PixelBuffer.wrap(image));
+	}
+
+	/**
+	 * @return A RowSource over pixels that are already at hand
+	 */
+	static RowSource of(final PixelBuffer pixels) {
+		return new RowSource() {
+			private int y = 0;
+
+			public int width() { return pixels.width(); }
+			public int height() { return pixels.height(); }
+			public boolean hasAlpha() { return pixels.hasAlpha(); }
+
+			public void readRow(int[] row) throws IOException {
+				if (y >= pixels.height()) throw new IOException("There are no rows left in the image.");
+				pixels.getRow(y++, row);
+			}
+
+			public void close() {}
+		};
+	}
+}
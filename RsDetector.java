@@ -0,0 +1,105 @@
+/**
+ * RS analysis, from Fridrich, Goljan and Du's "Reliable detection of LSB steganography in
+ * color and grayscale images". Each row is cut into groups of 4 pixels, and a group's
+ * smoothness is measured as the sum of the differences between neighbours. Then the middle
+ * two values are flipped two ways: F1 swaps 2k and 2k+1, which is what embedding does, and
+ * F-1 swaps 2k-1 and 2k, which embedding never does. A group that gets rougher is Regular
+ * and one that gets smoother is Singular.
+ *
+ * In a clean image F1 and F-1 make about as many groups regular as each other. Embedding
+ * pushes the counts for F1 together and the ones for F-1 apart, in a way that's close enough
+ * to linear and quadratic that counting the same groups again with every LSB flipped gives
+ * enough equations to solve for how many LSBs were replaced. All of that is counted here,
+ * per channel, in the one pass.
+ */
+public class RsDetector extends Detector {
+
+	/**
+	 * Per channel: regular and singular counts for F1 and for F-1, then the same again for
+	 * the group with its LSBs flipped.
+	 */
+	private final long[][] counts = new long[3][8];
+
+	public String name() {
+		return "rs";
+	}
+
+	public Detector fresh() {
+		return new RsDetector();
+	}
+
+	public void row(int[] row, int width) {
+		for (int c = 0; c < 3; ++c) {
+			int shift = 16 - 8*c;
+			// R and S for F1 and F-1 (m), then the same with the LSBs flipped (1)
+			int r = 0, s = 0, rm = 0, sm = 0, r1 = 0, s1 = 0, rm1 = 0, sm1 = 0;
+			for (int x = 0; x+4 <= width; x += 4) {
+				int a = (row[x] >> shift) & 0xFF, b = (row[x+1] >> shift) & 0xFF;
+				int d = (row[x+2] >> shift) & 0xFF, e = (row[x+3] >> shift) & 0xFF;
+				// F1 and F-1 on the middle two values, then the same on the flipped group, where
+				// F1 just undoes the flip. The comparisons are done with sign bits, since on a
+				// noisy image a branch on them would be a coin toss.
+				int f = smoothness(a, b, d, e);
+				int g = smoothness(a, b^1, d^1, e);
+				int h = smoothness(a, shift(b), shift(d), e);
+				r += (f-g) >>> 31;
+				s += (g-f) >>> 31;
+				rm += (f-h) >>> 31;
+				sm += (h-f) >>> 31;
+				a ^= 1;
+				e ^= 1;
+				f = smoothness(a, b^1, d^1, e);
+				g = smoothness(a, b, d, e);
+				h = smoothness(a, shift(b^1), shift(d^1), e);
+				r1 += (f-g) >>> 31;
+				s1 += (g-f) >>> 31;
+				rm1 += (f-h) >>> 31;
+				sm1 += (h-f) >>> 31;
+			}
+			long[] n = counts[c];
+			n[0] += r;
+			n[1] += s;
+			n[2] += rm;
+			n[3] += sm;
+			n[4] += r1;
+			n[5] += s1;
+			n[6] += rm1;
+			n[7] += sm1;
+		}
+	}
+
+	/**
+	 * F-1, which swaps 2k-1 and 2k
+	 */
+	private static int shift(int v) {
+		return ((v+1)^1)-1;
+	}
+
+	private static int smoothness(int a, int b, int d, int e) {
+		return Math.abs(b-a) + Math.abs(d-b) + Math.abs(e-d);
+	}
+
+	public void merge(Detector other) {
+		long[][] theirs = ((RsDetector)other).counts;
+		for (int c = 0; c < 3; ++c) {
+			for (int i = 0; i < 8; ++i) counts[c][i] += theirs[c][i];
+		}
+	}
+
+	/**
+	 * @return The estimated fraction of each channel's LSBs that were replaced. RS gets
+	 *         unreliable as that nears 1, and gives NaN when it can't be solved at all, which
+	 *         in practice means nearly all of them were.
+	 */
+	public double[] estimates() {
+		double[] p = new double[3];
+		for (int c = 0; c < 3; ++c) {
+			long[] n = counts[c];
+			// R-S for F1 and F-1, as they are (0) and with every LSB flipped (1)
+			double d0 = n[0]-n[1], dn0 = n[2]-n[3], d1 = n[4]-n[5], dn1 = n[6]-n[7];
+			double z = smallerRoot(2*(d1+d0), dn0-dn1-d1-3*d0, d0-dn0);
+			p[c] = z/(z-0.5);
+		}
+		return p;
+	}
+}
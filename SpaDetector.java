@@ -0,0 +1,76 @@
+/**
+ * Sample pair analysis, from Dumitrescu, Wu and Wang's "Detection of LSB steganography via
+ * sample pair analysis". It looks at every pair of horizontally neighbouring values (u, v)
+ * of a channel and sorts them into:
+ *   X: v is even and u < v, or v is odd and u > v
+ *   Y: v is even and u > v, or v is odd and u < v
+ *   Z: u == v
+ *   W: the part of Y where u and v only differ in the LSB
+ * In a natural image X and Y come out about the same size. Replacing LSBs moves pairs
+ * between the sets by known amounts, which gives a quadratic in the fraction replaced:
+ *   (W+Z)/2 p^2 + (2X - P) p + Y - X = 0
+ * with P the number of pairs.
+ */
+public class SpaDetector extends Detector {
+
+	/** Per channel: X, Y, Z, W and P */
+	private final long[][] counts = new long[3][5];
+
+	public String name() {
+		return "spa";
+	}
+
+	public Detector fresh() {
+		return new SpaDetector();
+	}
+
+	public void row(int[] row, int width) {
+		for (int c = 0; c < 3; ++c) {
+			long[] n = counts[c];
+			int shift = 16 - 8*c;
+			int x = 0, z = 0, w = 0;
+			int u = (row[0] >> shift) & 0xFF, v;
+			for (int i = 1; i < width; ++i, u = v) {
+				v = (row[i] >> shift) & 0xFF;
+				// Branches here are mispredicted all the time on a noisy image, so the sets are
+				// told apart with sign bits instead. Anything not in X or Z is in Y.
+				int d = u ^ v;
+				int same = (d-1) >>> 31; // u == v
+				int near = ((d >>> 1)-1) >>> 31; // u and v only differ in the LSB, or not at all
+				int order = 1 ^ (((u-v) >>> 31) ^ (~v & 1)); // the X condition
+				z += same;
+				w += near - same;
+				x += (1 - near) & order;
+			}
+			int pairs = Math.max(0, width-1);
+			n[0] += x;
+			n[1] += pairs - x - z;
+			n[2] += z;
+			n[3] += w;
+			n[4] += pairs;
+		}
+	}
+
+	public void merge(Detector other) {
+		long[][] theirs = ((SpaDetector)other).counts;
+		for (int c = 0; c < 3; ++c) {
+			for (int i = 0; i < 5; ++i) counts[c][i] += theirs[c][i];
+		}
+	}
+
+	/**
+	 * @return The estimated fraction of each channel's LSBs that were replaced
+	 */
+	public double[] estimates() {
+		double[] p = new double[3];
+		for (int c = 0; c < 3; ++c) {
+			long[] n = counts[c];
+			double x = n[0], y = n[1], z = n[2], w = n[3], pairs = n[4];
+			p[c] = smallerRoot((w+z)/2, 2*x-pairs, y-x);
+			// With no real root, the lowest point of the curve is about where it would have
+			// been, which here (unlike in RS) lands near 1 where it should
+			if (Double.isNaN(p[c]) && w+z > 0) p[c] = (pairs-2*x)/(w+z);
+		}
+		return p;
+	}
+}
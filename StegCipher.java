@@ -0,0 +1,31 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A StegCipher encrypts and authenticates the message inside a StegContainer. Each one has
+ * an id that's written into the container header, so open knows which cipher to hand the
+ * rest of the container to.
+ *
+ * Implementations have to be safe to share between threads.
+ */
+public interface StegCipher {
+
+	/**
+	 * @return The id written into the container header, 1-255
+	 */
+	int id();
+
+	/**
+	 * Starts encrypting a message. Everything written to the returned stream is encrypted
+	 * into out, along with whatever the cipher needs to decrypt it again (salt, IV, tag).
+	 * Closing the returned stream finishes the message and closes out.
+	 * @param header The container header, which is authenticated along with the message
+	 */
+	OutputStream encrypt(OutputStream out, byte[] header, String passphrase) throws IOException;
+
+	/**
+	 * Decrypts what encrypt wrote, data[off, off+len).
+	 * @return The message, or null if the passphrase is wrong or the data has been changed
+	 */
+	byte[] decrypt(byte[] data, int off, int len, byte[] header, String passphrase);
+}
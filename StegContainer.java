@@ -0,0 +1,234 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * StegContainer is the binary wrapper an encrypted message is embedded in. The original
+ * program embedded DesEncrypter's Base64 text, line breaks and all, which made every message
+ * about 35% bigger than its ciphertext. Every extra byte costs another 4/3 pixels.
+ *
+ * The layout is:
+ *   bytes 0-1 : the magic number 'S' 'C'
+ *   byte  2   : the container version
+ *   byte  3   : the id of the StegCipher the message is encrypted with
+ *   byte  4   : how the message was compressed before it was encrypted (CODEC_STORE or
+ *               CODEC_DEFLATE). Version 1 containers don't have this byte and are never
+ *               compressed.
+ *   bytes 5-  : whatever the cipher wrote, which always includes a tag that authenticates
+ *               the header and the message (see AesGcmCipher and DesCipher)
+ *
+ * The tag means a wrong passphrase or a damaged image is reported as such, rather than
+ * as whatever garbage the cipher happens to produce.
+ *
+ * Messages are compressed before they're encrypted (afterwards there's nothing left to
+ * compress). Text usually shrinks to well under half its size, which means fewer pixels to
+ * visit and fewer changed. When Deflate doesn't help, the message is stored as it is.
+ *
+ * open still understands the old Base64 messages. Base64 text is all printable ASCII, so it
+ * can never start with the container's version byte.
+ */
+public class StegContainer {
+
+	public static final int VERSION = 2;
+	public static final int CODEC_STORE = 0;
+	public static final int CODEC_DEFLATE = 1;
+
+	private static final byte MAGIC0 = 'S', MAGIC1 = 'C';
+	private static final int HEADER = 5, HEADER_V1 = 4;
+
+	/** What seal uses unless it's told otherwise */
+	private static final StegCipher DEFAULT_CIPHER = new AesGcmCipher();
+
+	//Prevent instantiation
+	private StegContainer() {}
+
+	/**
+	 * Compresses a message with Deflate if that makes it smaller, encrypts it with AES-GCM
+	 * and wraps it in a container.
+	 * @return The bytes to embed
+	 */
+	public static byte[] seal(byte[] message, String passphrase) {
+		return seal(message, passphrase, DEFAULT_CIPHER, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * seal with a particular cipher and compression level.
+	 * @param level A Deflater level from 1 (fastest) to 9 (smallest), DEFAULT_COMPRESSION, or
+	 *              0 to store the message without trying to compress it
+	 */
+	public static byte[] seal(byte[] message, String passphrase, StegCipher cipher, int level) {
+		int codec = CODEC_STORE;
+		byte[] body = message;
+		if (level != 0) {
+			byte[] deflated = deflate(message, level);
+			if (deflated.length < message.length) {
+				codec = CODEC_DEFLATE;
+				body = deflated;
+			}
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(body.length+64);
+			OutputStream enc = start(out, passphrase, cipher, codec);
+			enc.write(body);
+			enc.close();
+			return out.toByteArray();
+		}catch (IOException e) { // can't happen, everything is in memory
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * seal for a message that comes from a stream. The message is compressed and encrypted
+	 * as it's read, so only the ciphertext is ever held in memory. That means there's no
+	 * going back to store the message if it doesn't compress, but Deflate stores incompressible
+	 * blocks as they are anyway, at a cost of a few bytes in every 16K. The stream is read to
+	 * the end but not closed.
+	 * @param level See above
+	 */
+	public static byte[] seal(InputStream message, String passphrase, StegCipher cipher, int level) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(8192, message.available()+64));
+		OutputStream enc = start(out, passphrase, cipher, level == 0 ? CODEC_STORE : CODEC_DEFLATE);
+		Deflater deflater = null;
+		if (level != 0) {
+			deflater = new Deflater(level, true);
+			enc = new DeflaterOutputStream(enc, deflater, 8192);
+		}
+		try {
+			byte[] buffer = new byte[8192];
+			for (int n; (n = message.read(buffer)) > 0; ) enc.write(buffer, 0, n);
+			enc.close();
+		}finally {
+			if (deflater != null) deflater.end();
+		}
+		return out.toByteArray();
+	}
+
+	private static OutputStream start(OutputStream out, String passphrase, StegCipher cipher, int codec) throws IOException {
+		byte[] header = {MAGIC0, MAGIC1, (byte)VERSION, (byte)cipher.id(), (byte)codec};
+		out.write(header);
+		return cipher.encrypt(out, header, passphrase);
+	}
+
+	private static byte[] deflate(byte[] message, int level) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(message);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(message.length/2+64);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				out.write(buffer, 0, n);
+				if (out.size() >= message.length) break; // it isn't going to be any smaller
+			}
+			return out.toByteArray();
+		}finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Checks and decrypts what readStegoBytes returned, whether it's a container or one of
+	 * the old Base64 messages.
+	 * @return The message, or null if the passphrase is wrong or the data has been changed
+	 * @throws IllegalArgumentException if the data is neither a container nor Base64
+	 */
+	public static byte[] open(byte[] data, String passphrase) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length*2);
+		try {
+			if (!open(data, passphrase, out)) return null;
+		}catch (IOException e) { // the only thing that can go wrong in memory is bad Deflate data
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * open, writing the message to a stream. The message is checked and decrypted before
+	 * anything is written, and then inflated straight into out, so a message that compressed
+	 * well is never held in memory at full size.
+	 * @return false if the passphrase is wrong or the data has been changed, in which case
+	 *         nothing was written
+	 */
+	public static boolean open(byte[] data, String passphrase, OutputStream out) throws IOException {
+		if (!isContainer(data)) {
+			byte[] message = new DesEncrypter(passphrase).decrypt(data);
+			if (message == null) return false;
+			out.write(message);
+			return true;
+		}
+
+		int header = data[2] == 1 ? HEADER_V1 : HEADER;
+		if (data.length < header) return false;
+		StegCipher cipher = cipher(data[3] & 0xFF);
+		int codec = header == HEADER_V1 ? CODEC_STORE : data[4] & 0xFF;
+		if (cipher == null || (codec != CODEC_STORE && codec != CODEC_DEFLATE)) return false;
+
+		byte[] head = new byte[header];
+		System.arraycopy(data, 0, head, 0, header);
+		byte[] body = cipher.decrypt(data, header, data.length-header, head, passphrase);
+		if (body == null) return false;
+
+		if (codec == CODEC_STORE) {
+			out.write(body);
+		}else {
+			Inflater inflater = new Inflater(true);
+			try {
+				InputStream in = new InflaterInputStream(new ByteArrayInputStream(body), inflater, 8192);
+				byte[] buffer = new byte[8192];
+				for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+			}finally {
+				inflater.end();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Whether data starts like a container, as opposed to a Base64 message
+	 */
+	public static boolean isContainer(byte[] data) {
+		return data.length >= 3 && data[0] == MAGIC0 && data[1] == MAGIC1 && (data[2] == 1 || data[2] == VERSION);
+	}
+
+	/**
+	 * Decides whether the start of a message could be something open understands: a
+	 * container, or Base64 text. Extracting a message with the wrong passphrase gives random
+	 * bytes, and 16 random bytes all happen to be Base64 characters about once in 2^31 tries.
+	 * The magic and version alone would pass once in 2^23, so a container also has to name a
+	 * cipher open knows and, from version 2, a codec it knows, which makes that about once in
+	 * 2^31 for version 1 and 2^38 for version 2.
+	 * @param prefix The first few bytes of the message, or all of it if it's shorter
+	 */
+	public static boolean mightBeSealed(byte[] prefix) {
+		if (isContainer(prefix)) {
+			int header = prefix[2] == 1 ? HEADER_V1 : HEADER;
+			if (prefix.length < header || cipher(prefix[3] & 0xFF) == null) return false;
+			int codec = header == HEADER_V1 ? CODEC_STORE : prefix[4] & 0xFF;
+			return codec == CODEC_STORE || codec == CODEC_DEFLATE;
+		}
+		for (byte b : prefix) {
+			if (!((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9')
+					|| b == '+' || b == '/' || b == '=' || b == '\r' || b == '\n')) return false;
+		}
+		return prefix.length > 0;
+	}
+
+	/**
+	 * @return The cipher that can decrypt containers with this id, or null if there isn't one
+	 */
+	private static StegCipher cipher(int id) {
+		switch (id) {
+		case DesCipher.ID: return new DesCipher();
+		case AesGcmCipher.ID: return DEFAULT_CIPHER; // the parameters it needs are in the container
+		default: return null;
+		}
+	}
+}
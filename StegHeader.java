@@ -0,0 +1,183 @@
+/**
+ * StegHeader is the small block of data written in front of a message in the permuted
+ * format. The legacy format only stored a 3-byte length, which meant a reader had no way
+ * of telling whether an image was written with the Random pixel order or something newer,
+ * and capped messages at 16 MB.
+ *
+ * The layout is:
+ *   bytes 0-1 : the magic number 'S' 'G'
+ *   byte  2   : the format version
+ *   byte  3   : flags. The low 5 bits are the BitLayout the message is written with (see
+ *               BitLayout.code), which is 0 for the original 2 bits of red, green and blue.
+ *               SHARD says the message is one piece of a bigger one spread over several
+ *               images (see StegShards), and LAST that it's the final piece. The top bit is
+ *               reserved and always 0.
+ *   then      : the length of the message in bytes, 7 bits to a byte, lowest first, with
+ *               the top bit of each byte set if another one follows
+ *   then      : for a shard only, 4 bytes identifying the set of images it belongs to and
+ *               the shard's position in the set, written the same way as the length
+ *
+ * Version 2 headers, which always had 4 bytes of big-endian length and no shard fields, are
+ * still read.
+ *
+ * The header itself is always written with BitLayout.DEFAULT, since the reader has to be
+ * able to find it before it knows anything else.
+ *
+ * Because the header is itself scattered across the permuted pixels, reading it with the
+ * wrong passphrase gives random bytes, and the magic number almost never matches.
+ */
+public class StegHeader {
+
+	public static final int VERSION = 3;
+	/** The most bytes a header can take up */
+	public static final int MAX_SIZE = 4+5+4+5;
+
+	public static final int SHARD = 0x20, LAST = 0x40;
+
+	private static final byte MAGIC0 = 'S', MAGIC1 = 'G';
+	private static final int LAYOUT_BITS = 0x1F;
+
+	public final int version;
+	public final int flags;
+	public final int length;
+	/** For a shard, the set it belongs to and where it goes in it */
+	public final int set, index;
+
+	public StegHeader(int length) {
+		this(length, BitLayout.DEFAULT);
+	}
+
+	public StegHeader(int length, BitLayout layout) {
+		this(VERSION, layout.code(), length, 0, 0);
+	}
+
+	/**
+	 * A header for a shard.
+	 * @param last Whether this is the final shard of the set
+	 */
+	public StegHeader(int length, BitLayout layout, int set, int index, boolean last) {
+		this(VERSION, layout.code() | SHARD | (last ? LAST : 0), length, set, index);
+	}
+
+	private StegHeader(int version, int flags, int length, int set, int index) {
+		if (length < 0 || index < 0) throw new IllegalArgumentException("Lengths and indexes can't be negative.");
+		this.version = version;
+		this.flags = flags;
+		this.length = length;
+		this.set = set;
+		this.index = index;
+	}
+
+	/**
+	 * @return The layout the message after the header is written with
+	 */
+	public BitLayout layout() {
+		return BitLayout.fromCode(flags & LAYOUT_BITS);
+	}
+
+	public boolean isShard() {
+		return (flags & SHARD) != 0;
+	}
+
+	public boolean isLast() {
+		return (flags & LAST) != 0;
+	}
+
+	/**
+	 * @return How many bytes the header takes up in front of the message
+	 */
+	public int size() {
+		if (version == 2) return 8;
+		return 4 + varintSize(length) + (isShard() ? 4 + varintSize(index) : 0);
+	}
+
+	public byte[] encode() {
+		byte[] b = new byte[size()];
+		b[0] = MAGIC0;
+		b[1] = MAGIC1;
+		b[2] = (byte)version;
+		b[3] = (byte)flags;
+		if (version == 2) {
+			b[4] = (byte)((length >> 24) & 0xFF);
+			b[5] = (byte)((length >> 16) & 0xFF);
+			b[6] = (byte)((length >>  8) & 0xFF);
+			b[7] = (byte)((length      ) & 0xFF);
+			return b;
+		}
+		int pos = putVarint(b, 4, length);
+		if (isShard()) {
+			b[pos++] = (byte)((set >> 24) & 0xFF);
+			b[pos++] = (byte)((set >> 16) & 0xFF);
+			b[pos++] = (byte)((set >>  8) & 0xFF);
+			b[pos++] = (byte)((set      ) & 0xFF);
+			putVarint(b, pos, index);
+		}
+		return b;
+	}
+
+	/**
+	 * @param b Bytes read from the start of the message stream; MAX_SIZE is always enough
+	 * @param n How many of them there are
+	 * @return The header, or null if the bytes aren't a header this version understands
+	 */
+	public static StegHeader decode(byte[] b, int n) {
+		if (n < 4 || b[0] != MAGIC0 || b[1] != MAGIC1) return null;
+		int version = b[2], flags = b[3] & 0xFF;
+		if (BitLayout.fromCode(flags & LAYOUT_BITS) == null) return null;
+
+		if (version == 2) {
+			if (n < 8 || (flags & ~LAYOUT_BITS) != 0) return null;
+			int length = ((b[4] & 0xFF) << 24) | ((b[5] & 0xFF) << 16) | ((b[6] & 0xFF) << 8) | (b[7] & 0xFF);
+			if (length < 0) return null;
+			return new StegHeader(2, flags, length, 0, 0);
+		}
+		if (version != VERSION || (flags & 0x80) != 0 || (flags & (SHARD|LAST)) == LAST) return null;
+
+		long[] value = new long[1];
+		int pos = getVarint(b, 4, n, value);
+		if (pos < 0 || value[0] > Integer.MAX_VALUE) return null;
+		int length = (int)value[0], set = 0, index = 0;
+		if ((flags & SHARD) != 0) {
+			if (pos+4 > n) return null;
+			set = ((b[pos] & 0xFF) << 24) | ((b[pos+1] & 0xFF) << 16) | ((b[pos+2] & 0xFF) << 8) | (b[pos+3] & 0xFF);
+			pos = getVarint(b, pos+4, n, value);
+			if (pos < 0 || value[0] > Integer.MAX_VALUE) return null;
+			index = (int)value[0];
+		}
+		return new StegHeader(VERSION, flags, length, set, index);
+	}
+
+	private static int varintSize(int value) {
+		int size = 1;
+		while ((value >>>= 7) != 0) size++;
+		return size;
+	}
+
+	private static int putVarint(byte[] b, int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			b[pos++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		b[pos++] = (byte)value;
+		return pos;
+	}
+
+	/**
+	 * Reads a varint from b[pos, n) into value[0].
+	 * @return Where the next field starts, or -1 if the varint runs off the end or is too long
+	 */
+	private static int getVarint(byte[] b, int pos, int n, long[] value) {
+		long v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (pos >= n) return -1;
+			int c = b[pos++];
+			v |= (long)(c & 0x7F) << shift;
+			if ((c & 0x80) == 0) {
+				if (c == 0 && shift > 0) return -1; // padded out, so size() wouldn't match
+				value[0] = v;
+				return pos;
+			}
+		}
+		return -1;
+	}
+}
@@ -1,7 +1,17 @@
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.RecursiveAction;
 
 import javax.imageio.ImageIO;
 
@@ -16,6 +26,17 @@ import javax.imageio.ImageIO;
  */
 public class StegImage {
 	
+	/**
+	 * The original format: pixels are picked by a java.util.Random seeded with the hash of the
+	 * passphrase, and the message starts with a 3-byte length.
+	 */
+	public static final int FORMAT_LEGACY = 1;
+	/**
+	 * Pixels are picked by a PixelPermutation keyed with the passphrase, and the message starts
+	 * with a StegHeader. This is what writeStego uses unless it's told otherwise.
+	 */
+	public static final int FORMAT_PERMUTED = 2;
+	
 	//Prevent instantiation
 	private StegImage() {}
 	
@@ -28,133 +49,522 @@ public class StegImage {
 	 * @throws IOException
 	 */
 	public static void writeStego(String infile, String message, String outfile, String passphrase) throws IOException {
-		//Break the String message into bytes, then append the length to the beginning of the array
-		byte[] str = message.getBytes();
-		byte[] msg = new byte[str.length+3];
-
-		msg[0] = (byte)((str.length >> 16) & 0xFF);
-		msg[1] = (byte)((str.length >>  8) & 0xFF);
-		msg[2] = (byte)((str.length      ) & 0xFF);
-		for (int i = 0; i < str.length; ++i) {
-			msg[i+3] = str[i];
+		writeStego(infile, message, outfile, passphrase, new StegOptions());
+	}
+	
+	/**
+	 * The same as above, but lets the caller pick the pixel order and how many threads to use.
+	 * readStego figures out which format an image uses on its own.
+	 */
+	public static void writeStego(String infile, String message, String outfile, String passphrase, StegOptions options) throws IOException {
+		// An uncompressed cover going to a file of the same type is just patched (see MappedImage)
+		if (MappedImage.canPatch(new File(infile), new File(outfile))) {
+			MappedImage.writeStego(new File(infile), message.getBytes(StandardCharsets.UTF_8), passphrase, options, new File(outfile));
+			return;
 		}
-
-		// Open the input file and set up the arrays to read into
-		BufferedImage source = ImageIO.read(new File(infile));
-		int w = source.getWidth(), h = source.getHeight();
-		int curr, mcurr; 		// the current pixel and message bits
-		int mcounter = 0; 		// the current byte of the message
-		int subcounter = 0; 	// the current position in bits of the current byte of the message
-		int mask = 3; 			// the bit mask used for setting values. This is 00000011.
-		boolean done = false;
+		BufferedImage dest = writeStego(ImageIO.read(new File(infile)), message, passphrase, options);
+		PngWriter.write(dest, new File(outfile), options);
+	}
+	
+	/**
+	 * writeStego for an image that's already in memory. The pixels are changed in place
+	 * whenever the image's layout allows it.
+	 * @return The image holding the message, which is source itself unless it had to be
+	 *         converted first (see PixelBuffer.wrap)
+	 */
+	public static BufferedImage writeStego(BufferedImage image, String message, String passphrase, StegOptions options) throws IOException {
+		return writeStego(image, message.getBytes(StandardCharsets.UTF_8), passphrase, options);
+	}
+	
+	/**
+	 * writeStego for a message that's already bytes, which can be anything at all. The array
+	 * is read in place, never copied.
+	 */
+	public static BufferedImage writeStego(BufferedImage image, byte[] message, String passphrase, StegOptions options) throws IOException {
+		PixelBuffer source = PixelBuffer.wrap(image);
+		writeStego(source, message, passphrase, options);
+		return source.image();
+	}
+	
+	/**
+	 * writeStego for pixels wherever they live, which for MappedImage is a file.
+	 */
+	static void writeStego(PixelBuffer source, byte[] message, String passphrase, StegOptions options) throws IOException {
+		BitLayout layout = options.getLayout();
+		if (options.getFormat() == FORMAT_LEGACY) {
+			if (!layout.equals(BitLayout.DEFAULT)) throw new IllegalArgumentException("The legacy format can only use "+BitLayout.DEFAULT+".");
+			writeLegacy(source, message, passphrase);
+		}else {
+			writeStego(source, message, 0, passphrase, options, new StegHeader(message.length, layout));
+		}
+	}
+	
+	/**
+	 * writeStego in the permuted format for message[off, off+header.length), behind a header
+	 * the caller made, which is how StegShards marks each piece of a message. The header's
+	 * layout is used rather than the options'.
+	 */
+	static BufferedImage writeStego(BufferedImage image, byte[] message, int off, String passphrase, StegOptions options, StegHeader header) throws IOException {
+		PixelBuffer source = PixelBuffer.wrap(image);
+		writeStego(source, message, off, passphrase, options, header);
+		return source.image();
+	}
+	
+	private static void writeStego(PixelBuffer source, byte[] message, int off, String passphrase, StegOptions options, StegHeader header) throws IOException {
+		int w = source.width(), h = source.height(), len = header.length;
+		BitLayout layout = header.layout();
+		if (len > capacity(w, h, layout, header.size())) {
+			throw new IOException("The picture is too small to hold the message! Please choose a larger picture.");
+		}
+		
+		//The header goes in front of the message, always in the default layout so readers can find it
+		PixelPermutation perm = PixelPermutation.forPassphrase(passphrase, w*h);
+		byte[] head = header.encode();
+		writeBits(source, perm, BitLayout.DEFAULT, head, 0, 0, head.length);
+		long base = messageBase(header)-(long)off*8; // so that message[off] lands where the message starts
+		if (options.getParallelism() > 1 && len > PARALLEL_CHUNK) {
+			options.pool().invoke(new BitTask(source, perm, layout, message, base, off, off+len, true, options.getParallelism()));
+		}else {
+			writeBits(source, perm, layout, message, base, off, off+len);
+		}
+	}
+	
+	/**
+	 * @return The most message bytes a w*h image can hold in the permuted format, behind a
+	 *         header of headerSize bytes
+	 */
+	static int capacity(int w, int h, BitLayout layout, int headerSize) {
+		long bits = (long)w*h*layout.bitsPerPixel() - messageBase(layout, headerSize);
+		return (int)Math.max(0, Math.min(Integer.MAX_VALUE, bits/8));
+	}
+	
+	/**
+	 * writeStego for a message that comes from a stream, which is read to the end but not
+	 * closed.
+	 */
+	public static BufferedImage writeStego(BufferedImage image, InputStream message, String passphrase, StegOptions options) throws IOException {
+		return writeStego(image, readAll(message), passphrase, options);
+	}
+	
+	/**
+	 * writeLegacy is writeStego for FORMAT_LEGACY. The pixel order comes from a java.util.Random,
+	 * so each pixel can only be found by generating all the ones before it.
+	 */
+	private static void writeLegacy(PixelBuffer source, byte[] str, String passphrase) throws IOException {
+		//The message is written with its length in front of it
+		int mlen = str.length+3;
+		BitPacker packer = lengthFirst(str, "legacy");
+		int w = source.width(), h = source.height();
 
 		// Before doing anything, check and see if the image is large enough to hold the message
-		if (msg.length*4 > w*h*3) {
+		if ((long)mlen*4 > (long)w*h*3) {
 			throw new IOException("The picture is too small to hold the message! Please choose a larger picture.");
 		}
 
 		//Set up the variables for jumping around the image pixels
+		int size = w*h, pos;
 		Random rand = new Random(passphrase.hashCode());
-		SortedList visited = new SortedList();
+		PixelSet visited = PixelSet.forDensity(size, (mlen*4+2)/3);
 		
 		//Jump through pseudorandom pixels and write bits to their LSBs
-		int size = w*h, pos;
-		while (visited.size < size && !done) {
+		while (visited.size() < size && !packer.isEmpty()) {
 			//Figure out what pixel to write to next
-			pos = rand.nextInt(size);
-			while (visited.contains(pos)) { pos = (pos+1)%size; } //If we've already been here, just go to the next available pixel
+			pos = visited.nextFree(rand.nextInt(size)); //If we've already been here, just go to the next available pixel
 			visited.insert(pos);
 			
-			curr = source.getRGB(pos%w, pos/w);
-			for (int shift = 16; shift >= 0; shift -= 8) {
-				/* each pixel is a 32-bit integer value of the format aaaaaaaarrrrrrrrggggggggbbbbbbbb,
-				 * with a=alpha, r=red, g=green, b=blue. Changing the alpha values would be too obvious,
-				 * so we change only the 2 least significant bits of the rgb values. This means that it
-				 * takes 4 pixels to store 3 message bytes, or 4/3 times the number of bytes in the message.
-				 */
-				mcurr = (msg[mcounter] >> subcounter) & mask; //sets all bits but the two we want to 0
-				curr = (~(mask << shift) & curr) | (mcurr << shift); // unset both bits we want, then OR the new ones in
-				
-				subcounter = (subcounter+2) % 8; // increment the bit offset in the current message byte
-				if (subcounter == 0) mcounter++; // if we've gone through all the bits in this byte, move to the next
-				if (mcounter == msg.length) { // if we're done with the message, exit the loop
-					done = true;
-					break;
-				}
-			}
-			source.setRGB(pos%w, pos/w, curr);
+			/* each pixel is a 32-bit integer value of the format aaaaaaaarrrrrrrrggggggggbbbbbbbb,
+			 * with a=alpha, r=red, g=green, b=blue. Changing the alpha values would be too obvious,
+			 * so we change only the 2 least significant bits of the rgb values. This means that it
+			 * takes 4 pixels to store 3 message bytes, or 4/3 times the number of bytes in the message.
+			 */
+			source.setRGB(pos, packer.pack(source.getRGB(pos)));
 		}
-		
-		ImageIO.write(source, "png", new File(outfile));
+	}
+	
+	/**
+	 * Sets up a packer for the legacy and blind formats, which write a message in the default
+	 * layout with its length in 3 bytes in front of it, highest byte first.
+	 * @param format The format's name, for the error
+	 * @throws IOException if the length doesn't fit in 3 bytes, rather than write one that
+	 *         would be read back wrong
+	 */
+	private static BitPacker lengthFirst(byte[] str, String format) throws IOException {
+		if (str.length > 0xFFFFFF) throw new IOException("The message is too long for the "+format+" format, which can only hold up to 16 MB. Please use the permuted format.");
+		BitPacker packer = new BitPacker(BitLayout.DEFAULT, 0);
+		packer.push(str.length >> 16, 8);
+		packer.push(str.length >> 8, 8);
+		packer.push(str.length, 8);
+		packer.input(str, 0, str.length);
+		return packer;
 	}
 	
 	/**
 	 * readStegod reads a stego message out of a file that was written with writeStego.
+	 * The permuted format is tried first; if no header turns up, the image is read as
+	 * FORMAT_LEGACY.
 	 * @param infile The file to be read
 	 * @return A string containing the message that was stored in the file.
 	 */
 	public static String readStego(String infile, String passphrase) throws Exception {
-		BufferedImage source = ImageIO.read(new File(infile));
+		return readStego(infile, passphrase, new StegOptions());
+	}
+	
+	/**
+	 * The same as above, but lets the caller limit how many threads are used.
+	 */
+	public static String readStego(String infile, String passphrase, StegOptions options) throws Exception {
+		return new String(readStegoBytes(infile, passphrase, options), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * readStego for an image that's already in memory.
+	 */
+	public static String readStego(BufferedImage image, String passphrase, StegOptions options) throws Exception {
+		return new String(readStegoBytes(image, passphrase, options), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * readStegoBytes is readStego for messages that aren't text.
+	 * @return The message exactly as it was given to writeStego
+	 */
+	public static byte[] readStegoBytes(String infile, String passphrase) throws Exception {
+		return readStegoBytes(infile, passphrase, new StegOptions());
+	}
+	
+	/**
+	 * The same as above, but lets the caller say what to expect (see StegOptions.setSealed)
+	 * and how many threads to use.
+	 */
+	public static byte[] readStegoBytes(String infile, String passphrase, StegOptions options) throws Exception {
+		return readStegoBytes(load(new File(infile)), passphrase, options, new StegHeader[1]);
+	}
+	
+	/**
+	 * @return The pixels of an image file: mapped straight from the file if it's one
+	 *         MappedImage understands, since then only the pixels the message is in are read,
+	 *         and otherwise decoded with ImageIO
+	 */
+	static PixelBuffer load(File file) throws IOException {
+		PixelBuffer mapped = MappedImage.open(file, false);
+		if (mapped != null) return mapped;
+		BufferedImage image = ImageIO.read(file);
+		if (image == null) throw new IOException("Can't read "+file+": unknown image format.");
+		return PixelBuffer.wrap(image);
+	}
+	
+	/**
+	 * readStegoBytes for an image that's already in memory.
+	 */
+	public static byte[] readStegoBytes(BufferedImage image, String passphrase, StegOptions options) throws Exception {
+		return readStegoBytes(image, passphrase, options, new StegHeader[1]);
+	}
+	
+	/**
+	 * readStegoRange reads only bytes [offset, offset+len) of the message in a file. In the
+	 * permuted format the pixels holding them are found with PixelPermutation.map, so only
+	 * the header and the pixels of the range are looked at, and a few bytes from the end of
+	 * a large message cost the same as a few from the start. For FORMAT_LEGACY images the
+	 * pixel order still has to be worked out up to the end of the range (see LegacyPath), but
+	 * nothing before the range is extracted.
+	 *
+	 * The bytes are the message as it's stored in the image, so for a sealed message that's
+	 * the StegContainer, not what's inside it.
+	 * @throws IllegalArgumentException if the range isn't inside the message
+	 */
+	public static byte[] readStegoRange(String infile, String passphrase, int offset, int len, StegOptions options) throws Exception {
+		return readStegoRange(load(new File(infile)), passphrase, offset, len, options);
+	}
+
+	/**
+	 * readStegoRange for an image that's already in memory.
+	 */
+	public static byte[] readStegoRange(BufferedImage image, String passphrase, int offset, int len, StegOptions options) throws Exception {
+		return readStegoRange(PixelBuffer.wrap(image), passphrase, offset, len, options);
+	}
+
+	private static byte[] readStegoRange(PixelBuffer source, String passphrase, int offset, int len, StegOptions options) throws Exception {
+		PixelPermutation perm = PixelPermutation.forPassphrase(passphrase, source.width()*source.height());
+		StegHeader head = readHeader(source, perm, options);
+		LegacyPath path = null;
+		int mlen;
+		if (head != null) {
+			mlen = head.length;
+		}else {
+			path = LegacyPath.forPassphrase(passphrase, source.width()*source.height());
+			mlen = readLegacyLength(source, path, options);
+		}
+		if (offset < 0 || len < 0 || (long)offset+len > mlen) {
+			throw new IllegalArgumentException("Bytes "+offset+" to "+((long)offset+len)+" aren't in the message, which is "+mlen+" bytes long.");
+		}
+
+		byte[] msg = new byte[len];
+		if (head == null) readLegacyBits(source, path, msg, offset);
+		else readBits(source, perm, head.layout(), msg, messageBase(head)+offset*8L, len, options);
+		return msg;
+	}
+
+	/**
+	 * readStegoBytes that also hands back the header, for StegShards.
+	 * @param header header[0] is set to the message's header, or null for FORMAT_LEGACY
+	 */
+	static byte[] readStegoBytes(BufferedImage image, String passphrase, StegOptions options, StegHeader[] header) throws Exception {
+		return readStegoBytes(PixelBuffer.wrap(image), passphrase, options, header);
+	}
+	
+	private static byte[] readStegoBytes(PixelBuffer source, String passphrase, StegOptions options, StegHeader[] header) throws Exception {
+		PixelPermutation perm = PixelPermutation.forPassphrase(passphrase, source.width()*source.height());
+		StegHeader head = header[0] = readHeader(source, perm, options);
+		if (head == null) return readLegacy(source, passphrase, options);
 		
-		int w = source.getWidth(), h = source.getHeight();
-		int curr;
-		int mcounter = 0, subcounter = 0;
-		int mask = 3; //see the above method for descriptions of these variables
+		byte[] msg = new byte[head.length];
+		readBits(source, perm, head.layout(), msg, messageBase(head), head.length, options);
+		return msg;
+	}
+	
+	/**
+	 * This version of readStego writes the message to a stream a piece at a time instead of
+	 * returning it, so a large message never has to be in memory twice.
+	 * @param out Where to write the message. It's flushed but not closed.
+	 */
+	public static void readStego(String infile, String passphrase, OutputStream out) throws Exception {
+		readStego(load(new File(infile)), passphrase, new StegOptions(), out);
+	}
+	
+	/**
+	 * readStego to a stream for an image that's already in memory.
+	 */
+	public static void readStego(BufferedImage image, String passphrase, StegOptions options, OutputStream out) throws Exception {
+		readStego(PixelBuffer.wrap(image), passphrase, options, out);
+	}
+	
+	private static void readStego(PixelBuffer source, String passphrase, StegOptions options, OutputStream out) throws Exception {
+		PixelPermutation perm = PixelPermutation.forPassphrase(passphrase, source.width()*source.height());
+		StegHeader header = readHeader(source, perm, options);
+		if (header == null) {
+			out.write(readLegacy(source, passphrase, options));
+		}else {
+			BitLayout layout = header.layout();
+			long base = messageBase(header);
+			byte[] buffer = new byte[Math.min(header.length, STREAM_CHUNK)];
+			for (int done = 0, n; done < header.length; done += n) {
+				n = Math.min(buffer.length, header.length-done);
+				readBits(source, perm, layout, buffer, base+(long)done*8, n, options);
+				out.write(buffer, 0, n);
+			}
+		}
+		out.flush();
+	}
+	
+	/** How many message bytes readStego extracts at a time when it's writing to a stream */
+	private static final int STREAM_CHUNK = 1 << 20;
+	
+	/**
+	 * Reads the StegHeader from the first pixels of the permutation. If the options say the
+	 * message is sealed, the first few bytes of the message are checked too.
+	 * @return The header, or null if there isn't one (so the image is probably FORMAT_LEGACY)
+	 * @throws Exception if the header says the message is bigger than the image, or the
+	 *                   message doesn't start the way a sealed one would
+	 */
+	private static StegHeader readHeader(PixelBuffer source, PixelPermutation perm, StegOptions options) throws Exception {
+		long pixels = (long)source.width()*source.height();
+		// Headers vary in size, so read as much as the biggest one could take up (or the image holds)
+		byte[] head = new byte[(int)Math.min(StegHeader.MAX_SIZE, pixels*BitLayout.DEFAULT.bitsPerPixel()/8)];
+		readBits(source, perm, BitLayout.DEFAULT, head, 0, 0, head.length);
+		StegHeader header = StegHeader.decode(head, head.length);
+		if (header == null) return null;
+		BitLayout layout = header.layout();
+		long base = messageBase(header);
+		if (base+(long)header.length*8 > pixels*layout.bitsPerPixel()) throw new Exception("Reported message length is longer than the file.");
 		
-		//Set up the PRNG to tell what pixels to look at
-		int size = w*h, pos;
-		Random rand = new Random(passphrase.hashCode());
-		SortedList visited = new SortedList();
+		if (options.isSealed()) {
+			byte[] prefix = new byte[Math.min(header.length, SEALED_PREFIX)];
+			readBits(source, perm, layout, prefix, base, 0, prefix.length);
+			if (!StegContainer.mightBeSealed(prefix)) throw new Exception(NO_MESSAGE);
+		}
+		return header;
+	}
+	
+	/** How many bytes of a sealed message are checked before the rest is extracted */
+	private static final int SEALED_PREFIX = 16;
+	
+	private static final String NO_MESSAGE = "No message was found with this passphrase.";
+	
+	/**
+	 * Where the message starts in the bit stream of the permutation. In the default layout
+	 * the message carries on from the bit after the header, just like it always has. In any
+	 * other layout a pixel can't be shared with the header, so the message starts with the
+	 * first pixel after it.
+	 */
+	static long messageBase(StegHeader header) {
+		return messageBase(header.layout(), header.size());
+	}
+	
+	private static long messageBase(BitLayout layout, int headerSize) {
+		if (layout.equals(BitLayout.DEFAULT)) return headerSize*8L;
+		int bits = BitLayout.DEFAULT.bitsPerPixel();
+		return (headerSize*8L+bits-1)/bits*layout.bitsPerPixel();
+	}
+	
+	/**
+	 * Fills dst[0, len) with the message bytes starting at bit base of the stream, on the
+	 * fork-join pool if there are enough of them.
+	 */
+	private static void readBits(PixelBuffer source, PixelPermutation perm, BitLayout layout, byte[] dst, long base, int len, StegOptions options) {
+		if (options.getParallelism() > 1 && len > PARALLEL_CHUNK) {
+			options.pool().invoke(new BitTask(source, perm, layout, dst, base, 0, len, false, options.getParallelism()));
+		}else {
+			readBits(source, perm, layout, dst, base, 0, len);
+		}
+	}
+	
+	/**
+	 * readLegacy is readStego for images written in FORMAT_LEGACY.
+	 */
+	private static byte[] readLegacy(PixelBuffer source, String passphrase, StegOptions options) throws Exception {
+		//The pixels to look at, worked out once per passphrase and image size (see LegacyPath)
+		LegacyPath path = LegacyPath.forPassphrase(passphrase, source.width()*source.height());
+		byte[] msg = new byte[readLegacyLength(source, path, options)];
+		readLegacyBits(source, path, msg, 0);
+		return msg;
+	}
+	
+	/**
+	 * @return The length of a FORMAT_LEGACY message
+	 * @throws Exception if it can't be right, or the options say the message is sealed and
+	 *                   it doesn't start the way a sealed one would
+	 */
+	private static int readLegacyLength(PixelBuffer source, LegacyPath path, StegOptions options) throws Exception {
+		int w = source.width(), h = source.height();
 		
-		//Read the first 4 pixels specially to get the message length
-		int l1 = rand.nextInt(size);
-		int l2 = rand.nextInt(size);
-		int l3 = rand.nextInt(size);
-		int l4 = rand.nextInt(size);
-		l1 = source.getRGB(l1%w, l1/w);
-		l2 = source.getRGB(l2%w, l2/w);
-		l3 = source.getRGB(l3%w, l3/w);
-		l4 = source.getRGB(l4%w, l4/w);
-
+		//Read the first 4 pixels specially to get the message length. writeLegacy marks these
+		//as visited but this never has, so they're left out of the rest of the path.
 		byte[] lenarry = new byte[3];
-		lenarry[0] |= (l1 >> 16) & mask;
-		lenarry[0] |= ((l1 >> 8) & mask) << 2;
-		lenarry[0] |= (l1 & mask) << 4;
-		lenarry[0] |= ((l2 >> 16) & mask) << 6;
-
-		lenarry[1] |= (l2 >> 8) & mask;
-		lenarry[1] |= (l2 & mask) << 2;
-		lenarry[1] |= ((l3 >> 16) & mask) << 4;
-		lenarry[1] |= ((l3 >> 8) & mask) << 6;
-
-		lenarry[2] |= l3 & mask;
-		lenarry[2] |= ((l4 >> 16) & mask) << 2;
-		lenarry[2] |= ((l4 >> 8) & mask) << 4;
-		lenarry[2] |= (l4 & mask) << 6;
+		BitUnpacker unpacker = new BitUnpacker(BitLayout.DEFAULT, 0);
+		unpacker.output(lenarry, 0, 3);
+		for (int i = 0; i < 4; ++i) unpacker.unpack(source.getRGB(path.head(i)));
 
 		int mlen = ((lenarry[0] << 16)&0xFF0000) | ((lenarry[1] << 8)&0xFF00) | (lenarry[2] & 0xFF);
 
 		// Check if the image is large enough to hold this message before doing anything else
 		if (mlen > w*h*3/4) throw new Exception("Reported message length is longer than the file.");
 		
-		byte[] msg = new byte[mlen];
+		// A sealed message can be recognized from its first few bytes, so read just those first
+		// and give up straight away if they're wrong, before asking for the whole path.
+		if (options.isSealed()) {
+			byte[] prefix = new byte[Math.min(mlen, SEALED_PREFIX)];
+			readLegacyBits(source, path, prefix, 0);
+			if (!StegContainer.mightBeSealed(prefix)) throw new Exception(NO_MESSAGE);
+		}
+		return mlen;
+	}
+	
+	/**
+	 * Fills msg with message bytes [offset, offset+msg.length) from the pixels along the
+	 * path, the same ones writeLegacy picked.
+	 */
+	private static void readLegacyBits(PixelBuffer source, LegacyPath path, byte[] msg, int offset) {
+		int bits = BitLayout.DEFAULT.bitsPerPixel();
+		long start = offset*8L, end = start+msg.length*8L;
+		int[] positions = path.positions((int)((end+bits-1)/bits));
+		BitUnpacker unpacker = new BitUnpacker(BitLayout.DEFAULT, (int)(start%bits));
+		unpacker.output(msg, 0, msg.length);
+		for (int i = (int)(start/bits); i < positions.length && !unpacker.isFull(); ++i) {
+			unpacker.unpack(source.getRGB(positions[i]));
+		}
+	}
+
+	
+	/**
+	 * writeBits writes msg[from, to) into the pixels given by a permutation, with msg[i] going
+	 * in at bit base+8i of the stream. Pixel p of the permutation holds bits p*b to p*b+b-1 of
+	 * the stream, where b is the layout's bitsPerPixel; in the default layout that's 6, which
+	 * is two bits in each of the red, green and blue values, lowest bits first, exactly like
+	 * the legacy format. If the range starts or ends part of the way through a pixel, the bits
+	 * of that pixel that belong to other bytes are left alone.
+	 */
+	private static void writeBits(PixelBuffer source, PixelPermutation perm, BitLayout layout, byte[] msg, long base, int from, int to) {
+		int bits = layout.bitsPerPixel(), pos;
+		long bit = base+(long)from*8;
+		int pixel = (int)(bit/bits);
+		BitPacker packer = new BitPacker(layout, (int)(bit%bits));
+		packer.input(msg, from, to);
 		
-		while (mcounter < mlen && visited.size < size) {
-			pos = rand.nextInt(size);
-			while (visited.contains(pos)) { pos = (pos+1)%size; } //See writeStego
-			visited.insert(pos);
-			
-			curr = source.getRGB(pos%w, pos/w);
-			for (int shift = 16; shift >= 0; shift -= 8) {
-				msg[mcounter] = (byte)( ((((curr >> shift) & mask) << subcounter) | msg[mcounter] )&0xFF);
-				
-				subcounter = (subcounter + 2) % 8;
-				if (subcounter == 0) mcounter++;
-				if (mcounter == mlen) break;
-			}
+		while (!packer.isEmpty()) {
+			pos = perm.map(pixel++);
+			source.setRGB(pos, packer.pack(source.getRGB(pos)));
 		}
+	}
+	
+	/**
+	 * readBits is the opposite of writeBits. It fills dst[from, to) with the message bytes
+	 * starting at bit base+8*from of the stream. Since any pixel can be found with perm.map,
+	 * that can be anywhere.
+	 */
+	private static void readBits(PixelBuffer source, PixelPermutation perm, BitLayout layout, byte[] dst, long base, int from, int to) {
+		int bits = layout.bitsPerPixel();
+		long bit = base+(long)from*8;
+		int pixel = (int)(bit/bits);
+		BitUnpacker unpacker = new BitUnpacker(layout, (int)(bit%bits));
+		unpacker.output(dst, from, to);
 		
-		return new String(msg);
+		while (!unpacker.isFull()) unpacker.unpack(source.getRGB(perm.map(pixel++)));
+	}
+	
+	/**
+	 * The smallest number of message bytes worth handing to another thread.
+	 */
+	private static final int PARALLEL_CHUNK = 3*16384;
+	
+	/**
+	 * BitTask runs writeBits or readBits over a range of message bytes on a fork-join pool,
+	 * splitting it in half until the pieces are small enough. Since the permutation gives each
+	 * pixel to exactly one stream position and the split points fall on bytes that start a
+	 * pixel, every thread works on its own pixels and the result is the same as doing it in
+	 * order.
+	 */
+	private static class BitTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final PixelBuffer source;
+		private final PixelPermutation perm;
+		private final BitLayout layout;
+		private final byte[] msg;
+		private final long base;
+		private final int from, to, chunk;
+		private final boolean write;
+		
+		/**
+		 * @param write true to write msg[from, to) into the image, false to read into it
+		 * @param base Where msg[0] is (or would be) in the stream, in bits
+		 */
+		BitTask(PixelBuffer source, PixelPermutation perm, BitLayout layout, byte[] msg, long base, int from, int to, boolean write, int parallelism) {
+			this(source, perm, layout, msg, base, from, to, Math.max(PARALLEL_CHUNK, (to-from)/(parallelism*4)), write);
+		}
+		
+		private BitTask(PixelBuffer source, PixelPermutation perm, BitLayout layout, byte[] msg, long base, int from, int to, int chunk, boolean write) {
+			this.source = source;
+			this.perm = perm;
+			this.layout = layout;
+			this.msg = msg;
+			this.base = base;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+			this.write = write;
+		}
+		
+		protected void compute() {
+			if (to-from <= chunk) {
+				if (write) writeBits(source, perm, layout, msg, base, from, to);
+				else readBits(source, perm, layout, msg, base, from, to);
+				return;
+			}
+			int mid = from + (to-from)/2;
+			// back up to a byte that starts a pixel; there's one in every 12 bytes at most
+			while ((base+(long)mid*8) % layout.bitsPerPixel() != 0) mid--;
+			invokeAll(new BitTask(source, perm, layout, msg, base, from, mid, chunk, write),
+			          new BitTask(source, perm, layout, msg, base, mid, to, chunk, write));
+		}
 	}
 	
 	/**
@@ -168,30 +578,25 @@ public class StegImage {
 	 * @throws IOException
 	 */
 	public static void writeBlind(String infile, String message, String outfile) throws IOException {
-		//Break the String message into bytes, then append the length to the beginning of the array
-		byte[] str = message.getBytes();
-		byte[] msg = new byte[str.length+3];
-
-		msg[0] = (byte)((str.length >> 16) & 0xFF);
-		msg[1] = (byte)((str.length >>  8) & 0xFF);
-		msg[2] = (byte)((str.length      ) & 0xFF);
-		for (int i = 0; i < str.length; ++i) {
-			msg[i+3] = str[i];
-		}
+		PngWriter.write(writeBlind(ImageIO.read(new File(infile)), message), new File(outfile), new StegOptions());
+	}
+	
+	/**
+	 * writeBlind for an image that's already in memory. The source isn't changed.
+	 * @return A new TYPE_INT_ARGB image holding the message
+	 */
+	public static BufferedImage writeBlind(BufferedImage source, String message) throws IOException {
+		//Break the String message into bytes; the length goes in front of them
+		byte[] str = message.getBytes(StandardCharsets.UTF_8);
+		BitPacker packer = lengthFirst(str, "blind");
 
-		// Open the input file and set up the arrays to read into
-		BufferedImage source = ImageIO.read(new File(infile));
+		// Set up the arrays to read into
 		int w = source.getWidth(), h = source.getHeight();
 		BufferedImage dest = new BufferedImage(w,h, BufferedImage.TYPE_INT_ARGB);
 		int[] pixels = new int[w];
-		int curr, mcurr;
-		int mcounter = 0;
-		int subcounter = 0;
-		int mask = 3;
-		boolean done = false;
 
 		// Before doing anything, check and see if the image is large enough to hold the message
-		if (msg.length*4 > w*h*3) {
+		if ((str.length+3L)*4 > (long)w*h*3) {
 			throw new IOException("The picture is too small to hold the message! Please choose a larger picture.");
 		}
 
@@ -199,113 +604,79 @@ public class StegImage {
 		for (int i = 0; i < h; ++i) {
 			source.getRGB(0,i,w,1,pixels,0,w); // Read the next line of the image
 
-			if (!done) { //modify the pixels in this line
-				for (int j = 0; j < w; ++j) {
-					curr = pixels[j];
-
-					for (int shift = 16; shift >= 0; shift -= 8) {
-						mcurr = (msg[mcounter] >> subcounter) & mask; //sets all bits but the two we want to 0
-						curr = (~(mask << shift) & curr) | (mcurr << shift); // unset both bits we want, then OR the new ones in
-						
-						
-						
-						subcounter = (subcounter+2) % 8; // increment the bit offset in the current message byte
-						if (subcounter == 0) mcounter++; // if we've gone through all the bits in this byte, move to the next
-						if (mcounter == msg.length) { // if we're done with the message, exit the loop
-							done = true;
-							break;
-						}
-					}
-
-					pixels[j] = curr;
-
-					if (done) break;
-				}
-			}
+			//modify the pixels in this line, if there's any message left
+			packer.pack(pixels, 0, w);
 			dest.setRGB(0,i,w,1,pixels,0,w);
 		}
-		ImageIO.write(dest, "png", new File(outfile));
+		return dest;
 	}
 	
 	/**
 	 * readBlind reads an unscrambled stego message out of a file. Like writeBlind,
 	 * it's only here for debugging/fun purposes.
+	 * 
+	 * The message sits in the first pixels of the image, so only the rows that hold it are
+	 * decoded: PNGs we can decode ourselves stop inflating after the last of them, and other
+	 * formats get an ImageReader source region that ends there (see RegionRowSource).
 	 * @param infile The file to be read
 	 * @return A string containing the message that was stored in the file.
 	 */
 	public static String readBlind(String infile) throws Exception {
-		BufferedImage source = ImageIO.read(new File(infile));
-		
-		int w = source.getWidth(), h = source.getHeight();
+		RowSource source = RowSource.open(new File(infile));
+		try {
+			return readBlind(source);
+		}finally {
+			source.close();
+		}
+	}
+	
+	/**
+	 * readBlind for an image that's already in memory.
+	 */
+	public static String readBlind(BufferedImage source) throws Exception {
+		return readBlind(RowSource.of(source));
+	}
+	
+	/**
+	 * readBlind for an image that comes a row at a time. Rows are only read until the message
+	 * is complete, and the source is told how far that is as soon as the length is known.
+	 */
+	public static String readBlind(RowSource source) throws Exception {
+		int w = source.width(), h = source.height();
 		int[] pixels = new int[w];
-		int curr;
-		int mcounter = 0, subcounter = 0;
-		int mask = 3; //see the above method for descriptions of these variables
 		
-		//Read the first line specially to get the message length
-		source.getRGB(0,0,w,1,pixels,0,w);
-
+		//The first 4 pixels hold the message length, and the message follows straight on
 		byte[] lenarry = new byte[3];
-		lenarry[0] |= (pixels[0] >> 16) & mask;
-		lenarry[0] |= ((pixels[0] >> 8) & mask) << 2;
-		lenarry[0] |= (pixels[0] & mask) << 4;
-		lenarry[0] |= ((pixels[1] >> 16) & mask) << 6;
-
-		lenarry[1] |= (pixels[1] >> 8) & mask;
-		lenarry[1] |= (pixels[1] & mask) << 2;
-		lenarry[1] |= ((pixels[2] >> 16) & mask) << 4;
-		lenarry[1] |= ((pixels[2] >> 8) & mask) << 6;
-
-		lenarry[2] |= pixels[2] & mask;
-		lenarry[2] |= ((pixels[3] >> 16) & mask) << 2;
-		lenarry[2] |= ((pixels[3] >> 8) & mask) << 4;
-		lenarry[2] |= (pixels[3] & mask) << 6;
-
-		int mlen = ((lenarry[0] << 16)&0xFF0000) | ((lenarry[1] << 8)&0xFF00) | (lenarry[2] & 0xFF);
-
-		// Check if the image is large enough to hold this message before doing anything else
-		if (mlen > w*h*3/4) throw new Exception("Reported message length is longer than the file.");
-		
-		byte[] msg = new byte[mlen];
-		// We also need a loop to read the rest of the line
+		byte[] msg = null;
+		BitUnpacker unpacker = new BitUnpacker(BitLayout.DEFAULT, 0);
+		unpacker.output(lenarry, 0, 3);
+		source.limit(rowsFor(4, w));
 		
-		for (int j = 4; j < w; ++j) {
-			curr = pixels[j];
+		for (int i = 0; i < h && !(msg != null && unpacker.isFull()); ++i) {
+			source.readRow(pixels);
 			
-			for (int shift = 16; shift >= 0; shift -= 8) {
-				msg[mcounter] = (byte)( ((((curr >> shift) & mask) << subcounter) | msg[mcounter] )&0xFF);
-				
-				subcounter = (subcounter + 2) % 8;
-				if (subcounter == 0) mcounter++;
-				if (mcounter == mlen) break;
-			}
-			if (mcounter == mlen) break;
-		}
-
-
-		// Now finish the rest of the lines normally
-		for (int i = 1; i < h; ++i) {
-			source.getRGB(0,i,w,1,pixels,0,w);
-			
-			if (mcounter < mlen) {
-				
-				for (int j = 0; j < w; ++j) {
-					curr = pixels[j];
-					
-					for (int shift = 16; shift >= 0; shift -= 8) {
-						msg[mcounter] = (byte)( ((((curr >> shift) & mask) << subcounter) | msg[mcounter] )&0xFF);
-						
-						subcounter = (subcounter + 2) % 8;
-						if (subcounter == 0) mcounter++;
-						if (mcounter == mlen) break;
-					}
-					if (mcounter == mlen) break;
-				}
+			for (int j = 0; j < w; ) {
+				j = unpacker.unpack(pixels, j, w);
+				if (!unpacker.isFull() || msg != null) break;
 				
+				int mlen = ((lenarry[0] << 16)&0xFF0000) | ((lenarry[1] << 8)&0xFF00) | (lenarry[2] & 0xFF);
+				// Check if the image is large enough to hold this message before doing anything else
+				if (mlen > (long)w*h*3/4) throw new Exception("Reported message length is longer than the file.");
+				msg = new byte[mlen];
+				unpacker.output(msg, 0, mlen);
+				source.limit(rowsFor(((mlen+3L)*8+5)/6, w));
 			}
 		}
+		if (msg == null) throw new Exception("The picture is too small to hold a message.");
 		
-		return new String(msg);
+		return new String(msg, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @return How many rows of a w pixel wide image the first pixels pixels take up
+	 */
+	private static int rowsFor(long pixels, int w) {
+		return (int)Math.min(Integer.MAX_VALUE, (pixels+w-1)/w);
 	}
 	
 	/**
@@ -320,39 +691,81 @@ public class StegImage {
 	}
 	public static byte[] readDirect(BufferedImage source) {
 		int w = source.getWidth(), h = source.getHeight();
+		long mlen = ((long)w*h*6+7)/8; // we hold 6/8 bits = 3/4 of a byte in each pixel, rounded up
+		if (mlen > Integer.MAX_VALUE-8) throw new IllegalArgumentException("The image is too large to dump into an array; use readDirect(infile, out) instead.");
+		
+		ByteArrayOutputStream msg = new ByteArrayOutputStream((int)mlen);
+		try {
+			readDirect(RowSource.of(source), Channels.newChannel(msg));
+		}catch (IOException e) { // can't happen, everything is in memory
+			throw new UncheckedIOException(e);
+		}
+		return msg.toByteArray();
+	}
+	
+	/**
+	 * This version of readDirect writes the bytes to a stream instead of returning them. The
+	 * image is read a row at a time where the format allows it (see RowSource.open), and the
+	 * bytes go out through a fixed-size buffer, so the memory used doesn't grow with the image.
+	 * @param infile The image to read
+	 * @param out Where to write the LSBs. It's flushed but not closed.
+	 */
+	public static void readDirect(String infile, OutputStream out) throws IOException {
+		readDirect(infile, Channels.newChannel(out));
+		out.flush();
+	}
+	public static void readDirect(String infile, WritableByteChannel out) throws IOException {
+		RowSource source = RowSource.open(new File(infile));
+		try {
+			readDirect(source, out);
+		}finally {
+			source.close();
+		}
+	}
+	public static void readDirect(RowSource source, WritableByteChannel out) throws IOException {
+		readDirect(source, out, BitLayout.DEFAULT);
+	}
+	
+	/**
+	 * readDirect for the bits of some other layout than the default one writeStego uses.
+	 */
+	public static void readDirect(RowSource source, WritableByteChannel out, BitLayout layout) throws IOException {
+		int w = source.width(), h = source.height();
 		int[] pixels = new int[w];
-		int curr;
-		int mcounter = 0, subcounter = 0;
-		int mask = 3; //see the writeStego method for descriptions of these variables
+		ByteBuffer buffer = ByteBuffer.allocate(DIRECT_BUFFER);
+		BitUnpacker unpacker = new BitUnpacker(layout, 0);
+		unpacker.output(buffer.array(), 0, DIRECT_BUFFER);
 		
-		int mlen = w*h*3/4; // we hold 6/8 bits = 3/4 of a byte in each pixel
-		if ((w*h)%4 != 0) mlen++; //adds one to account for int rounding
-
-		byte[] msg = new byte[mlen];
-
-		// Just read all the LSBs and put them in an array.
 		for (int i = 0; i < h; ++i) {
-			source.getRGB(0,i,w,1,pixels,0,w);
+			source.readRow(pixels);
 			
-			if (mcounter < mlen) {
-				
-				for (int j = 0; j < w; ++j) {
-					curr = pixels[j];
-					
-					for (int shift = 16; shift >= 0; shift -= 8) {
-						msg[mcounter] = (byte)( ((((curr >> shift) & mask) << subcounter) | msg[mcounter] )&0xFF);
-						
-						subcounter = (subcounter + 2) % 8;
-						if (subcounter == 0) mcounter++;
-						if (mcounter == mlen) break;
-					}
-					if (mcounter == mlen) break;
-				}
-				
+			for (int j = 0; j < w; ) {
+				j = unpacker.unpack(pixels, j, w);
+				if (unpacker.isFull()) drain(buffer, unpacker, out);
 			}
 		}
-		
-		return msg;
+		unpacker.flush(); // whatever is left over makes up the last byte
+		drain(buffer, unpacker, out);
+	}
+	
+	/** The size of the buffer readDirect collects bytes in before writing them out */
+	private static final int DIRECT_BUFFER = 65536;
+	
+	private static void drain(ByteBuffer buffer, BitUnpacker unpacker, WritableByteChannel out) throws IOException {
+		buffer.limit(unpacker.position());
+		while (buffer.hasRemaining()) out.write(buffer);
+		buffer.clear();
+		unpacker.output(buffer.array(), 0, DIRECT_BUFFER);
+	}
+	
+	/**
+	 * Reads everything left in a stream, without closing it.
+	 */
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(8192, in.available()));
+		byte[] buffer = new byte[8192];
+		for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+		return out.toByteArray();
 	}
 	
 	/**
@@ -368,52 +781,51 @@ public class StegImage {
 	 * Most steganography tools must be trained before they can determine a priori which files have messages
 	 * hidden inside them. Due to time constraints, this program only prints the relevant data.
 	 * 
+	 * After those, the standard Detectors print their estimates of how much of each color's
+	 * LSBs carry a message (see detect).
+	 * 
 	 * @param infile The image file to analyze
 	 * @throws IOException
 	 */
 	public static void analyze(String infile) throws IOException {
-		//
-		BufferedImage source = ImageIO.read(new File(infile));
-		int width = source.getWidth(), height = source.getHeight();
-		
-		int n=0, s=0, e=0, w=0, c=0; //north, south....center
-		int transitions = 0, nmatch = 0, temp;
-		int bit8ones = 0, bit7ones = 0;
-		
-		for (int y = 0; y < height; ++y) {
-			for (int x = 0; x < width; ++x) {
-				c = source.getRGB(x, y);
-				if (y != 0) n = source.getRGB(x, y-1);
-				if (y != height-1) s = source.getRGB(x, y+1);
-				if (x != width-1) e = source.getRGB(x+1, y);
-				if (x != 0) w = source.getRGB(x-1,y);
-				
-				//Go through the R, G, and B values of each pixel
-				for (int shift = 16; shift >= 0; shift -= 8) {
-					nmatch = 0;
-					if (((c >> (shift+1)) & 1) == 1) bit7ones++;
-					temp = (c >> shift) & 1;
-					if (temp == 1) bit8ones++;
-					if (temp != ((n >> shift) & 1)) nmatch++;
-					if (temp != ((s >> shift) & 1)) nmatch++;
-					if (temp != ((w >> shift) & 1)) nmatch++;
-					if (temp != ((e >> shift) & 1)) nmatch++;
-					if (nmatch >= 3) transitions++;
-				}
-			}
-		}
-		double transpercent = 100*(double)transitions / (double)(width*height*3);
-		System.out.println("Percentage of bit transitions: "+transpercent);
-		
-		double leastbitpercent = 100*(double)bit8ones / (double)(width*height*3);
-		System.out.println("Percentage of 1's in least bits: "+leastbitpercent);
-		
-		double least2percent = 100*(double)(bit8ones+bit7ones) / (double)(width*height*6);
-		System.out.println("Percentage of 1's in least two bits: "+least2percent);
-		
-		double n0 = width*height*3 - bit8ones, N = width*height*3;
-		double variance = (2*n0*bit8ones*(2*n0*bit8ones-N))/(N*N*(N-1));
-		System.out.println("LSB variance: "+variance);
-		
+		BufferedImage image = ImageIO.read(new File(infile));
+		if (image == null) throw new IOException("Can't read "+infile+": unknown image format.");
+		StegOptions options = new StegOptions();
+		analyze(image, options).print(System.out);
+		Steganalysis.print(detect(image, options), System.out);
+	}
+	
+	/**
+	 * Collects the counters described above for an image that's already in memory.
+	 * @return The counters and the numbers computed from them
+	 */
+	public static AnalysisResult analyze(BufferedImage source, StegOptions options) {
+		return Analyzer.analyze(PixelBuffer.wrap(source), options);
+	}
+	
+	/**
+	 * analyze, but only looking at as many pixels as it takes to know every percentage to
+	 * within margin percentage points (see Analyzer.sample), for sorting through lots of
+	 * images quickly. Uncompressed files that MappedImage understands aren't decoded at all,
+	 * so only the sampled pixels are ever read from them.
+	 */
+	public static void analyze(String infile, double margin) throws IOException {
+		Analyzer.sample(load(new File(infile)), margin, new StegOptions()).print(System.out);
+	}
+	
+	/**
+	 * Runs the chi-square attack, RS analysis and sample pair analysis over an image, all in
+	 * the same pass (see Steganalysis and Detector.standard).
+	 * @return The detectors, with their estimates ready
+	 */
+	public static List<Detector> detect(BufferedImage source, StegOptions options) {
+		return Steganalysis.run(PixelBuffer.wrap(source), Detector.standard(), options);
+	}
+	
+	/**
+	 * The sampling analyze for an image that's already in memory.
+	 */
+	public static AnalysisResult analyze(BufferedImage source, StegOptions options, double margin) {
+		return Analyzer.sample(PixelBuffer.wrap(source), margin, options);
 	}
 }
@@ -0,0 +1,256 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A StegJob is one non-interactive embed or extract, described by a line of a batch
+ * manifest. A line is either comma separated:
+ *
+ *   op,infile,outfile,passphrase,payload
+ *
+ * (fields may be wrapped in double quotes, with "" for a quote inside them) or a JSON object
+ * with the same names:
+ *
+ *   {"op":"e", "infile":"cover.jpg", "outfile":"out.png", "passphrase":"env:KEY", "payload":"msg.txt"}
+ *
+ * op is e to hide the payload file in infile and save the result as outfile (a PNG, unless
+ * both are the same kind of uncompressed file, in which case see MappedImage), d to read the
+ * message out of infile and save it to the payload file (outfile isn't used), or a to analyze
+ * infile (only infile is used).
+ *
+ * JSON jobs can carry the payload inline instead of naming a file, which is how StegServer's
+ * clients avoid a round trip through the disk: "data" holds the message to embed in Base64,
+ * and a d job with no payload file returns the message in the result's "data" field.
+ *
+ * Passphrases are never written into the manifest itself. Instead they're references, like
+ * OpenSSL's: env:NAME reads an environment variable, file:PATH reads the first line of a
+ * file, and pass:TEXT is the passphrase TEXT itself, for testing.
+ */
+public class StegJob {
+
+	public final int line;
+	public final String op, infile, outfile, passphrase, payload;
+	private final byte[] data;
+
+	public StegJob(int line, String op, String infile, String outfile, String passphrase, String payload) {
+		this(line, op, infile, outfile, passphrase, payload, null);
+	}
+
+	/**
+	 * @param data The message to embed, in place of a payload file, or null
+	 */
+	public StegJob(int line, String op, String infile, String outfile, String passphrase, String payload, byte[] data) {
+		if (!"e".equals(op) && !"d".equals(op) && !"a".equals(op)) throw new IllegalArgumentException("op must be e, d or a, not "+op);
+		if (infile == null || infile.isEmpty()) throw new IllegalArgumentException("infile is missing");
+		if (!op.equals("a")) {
+			if (passphrase == null || passphrase.isEmpty()) throw new IllegalArgumentException("passphrase is missing");
+			if (op.equals("e") && data == null && (payload == null || payload.isEmpty())) throw new IllegalArgumentException("payload is missing");
+			if (op.equals("e") && (outfile == null || outfile.isEmpty())) throw new IllegalArgumentException("outfile is missing");
+		}
+		this.line = line;
+		this.op = op;
+		this.infile = infile;
+		this.outfile = outfile;
+		this.passphrase = passphrase;
+		this.payload = payload;
+		this.data = data;
+	}
+
+	/**
+	 * Parses a manifest line in either format.
+	 * @param line The line number, for reporting
+	 * @throws IllegalArgumentException if the line can't be understood
+	 */
+	public static StegJob parse(String text, int line) {
+		text = text.trim();
+		if (text.startsWith("{")) {
+			Map<String, String> map = Json.parseObject(text);
+			byte[] data = null;
+			if (map.get("data") != null) {
+				try {
+					data = Base64Coder.decode(map.get("data"));
+				}catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("data isn't valid Base64: "+e.getMessage());
+				}
+			}
+			return new StegJob(line, map.get("op"), map.get("infile"), map.get("outfile"), map.get("passphrase"), map.get("payload"), data);
+		}
+		List<String> fields = splitCsv(text);
+		if (fields.size() != 5) throw new IllegalArgumentException("Expected 5 comma separated fields but found "+fields.size());
+		return new StegJob(line, fields.get(0), fields.get(1), fields.get(2), fields.get(3), fields.get(4));
+	}
+
+	/**
+	 * Runs the job and describes how it went, without ever throwing.
+	 * @return A JSON object on one line, with the status and how long each step took
+	 */
+	public String run(StegOptions options) {
+		StringBuilder out = new StringBuilder();
+		out.append("{\"line\":").append(line).append(",\"op\":").append(Json.quote(op)).append(",\"infile\":").append(Json.quote(infile));
+		long start = System.nanoTime(), t = start;
+		try {
+			if (op.equals("a")) {
+				BufferedImage image = ImageIO.read(new File(infile));
+				if (image == null) throw new IOException("Can't read "+infile+": unknown image format.");
+				t = lap(out, "read_ms", t);
+
+				analyze(out, PixelBuffer.wrap(image), options, 0);
+				out.append(",\"status\":\"ok\"");
+				return finish(out, start);
+			}
+			String pass = resolvePassphrase(passphrase);
+
+			if (op.equals("e")) {
+				byte[] msg = data != null ? data : Files.readAllBytes(new File(payload).toPath());
+				msg = StegContainer.seal(msg, pass);
+				t = lap(out, "encrypt_ms", t);
+
+				if (MappedImage.canPatch(new File(infile), new File(outfile))) {
+					// the cover is copied and the copy patched where it sits
+					MappedImage.writeStego(new File(infile), msg, pass, options, new File(outfile));
+					t = lap(out, "patch_ms", t);
+				}else if (options.getFormat() == StegImage.FORMAT_PERMUTED && StreamEmbedder.tooBigForHeap(new File(infile))) {
+					// reading, embedding and writing all happen at once, a row at a time
+					StreamEmbedder.writeStego(new File(infile), msg, pass, options, new File(outfile));
+					t = lap(out, "stream_ms", t);
+				}else {
+					BufferedImage image = ImageIO.read(new File(infile));
+					if (image == null) throw new IOException("Can't read "+infile+": unknown image format.");
+					t = lap(out, "read_ms", t);
+
+					image = StegImage.writeStego(image, msg, pass, options);
+					t = lap(out, "embed_ms", t);
+
+					PngWriter.write(image, new File(outfile), options);
+					t = lap(out, "write_ms", t);
+				}
+			}else {
+				BufferedImage image = ImageIO.read(new File(infile));
+				if (image == null) throw new IOException("Can't read "+infile+": unknown image format.");
+				t = lap(out, "read_ms", t);
+
+				byte[] msg = StegImage.readStegoBytes(image, pass, options);
+				image = null; // let the pixels go before decrypting
+				t = lap(out, "extract_ms", t);
+
+				msg = StegContainer.open(msg, pass);
+				if (msg == null) throw new IOException("No message found, or the passphrase is wrong.");
+				t = lap(out, "decrypt_ms", t);
+
+				if (payload == null || payload.isEmpty()) {
+					out.append(",\"data\":\"").append(Base64Coder.encode(msg)).append('"');
+				}else {
+					Files.write(new File(payload).toPath(), msg);
+					t = lap(out, "write_ms", t);
+				}
+			}
+			out.append(",\"status\":\"ok\"");
+		}catch (Exception e) {
+			String error = e.getMessage() != null ? e.getMessage() : e.toString();
+			out.append(",\"status\":\"error\",\"error\":").append(Json.quote(error));
+		}
+		return finish(out, start);
+	}
+
+	/**
+	 * Analyzes an image and adds how long it took and everything it found to a result, the way
+	 * an a job reports it. CorpusScanner shares this, so its lines look the same.
+	 * @param margin If more than 0, the statistics are only sampled to within this many
+	 *               percentage points (see Analyzer.sample); the detectors always see every pixel
+	 * @return The detectors, with their estimates ready
+	 */
+	static List<Detector> analyze(StringBuilder out, PixelBuffer source, StegOptions options, double margin) {
+		long t = System.nanoTime();
+		AnalysisResult result = margin > 0 ? Analyzer.sample(source, margin, options) : Analyzer.analyze(source, options);
+		t = lap(out, "analyze_ms", t);
+		List<Detector> detectors = Steganalysis.run(source, Detector.standard(), options);
+		t = lap(out, "detect_ms", t);
+		out.append(",\"width\":").append(result.width).append(",\"height\":").append(result.height);
+		out.append(",\"transition_percent\":").append(result.transitionPercent());
+		out.append(",\"lsb_percent\":").append(result.leastBitPercent());
+		out.append(",\"lsb2_percent\":").append(result.leastTwoBitsPercent());
+		out.append(",\"variance\":").append(result.variance());
+		if (result.isSampled()) out.append(",\"sampled\":true");
+		for (Detector detector : detectors) {
+			double[] e = detector.estimates();
+			out.append(",\"").append(detector.name()).append("\":[");
+			for (int c = 0; c < 3; ++c) out.append(c == 0 ? "" : ",").append(Double.isNaN(e[c]) ? "null" : Double.toString(e[c]));
+			out.append("]");
+		}
+		return detectors;
+	}
+
+	static String finish(StringBuilder out, long start) {
+		// Fractional milliseconds, since a warm server can turn small jobs around in less than one
+		out.append(",\"total_ms\":").append((System.nanoTime()-start)/1000/1000.0).append('}');
+		return out.toString();
+	}
+
+	static long lap(StringBuilder out, String name, long since) {
+		long now = System.nanoTime();
+		out.append(",\"").append(name).append("\":").append((now-since)/1000000);
+		return now;
+	}
+
+	/**
+	 * Looks up a passphrase reference (see the class comment).
+	 */
+	public static String resolvePassphrase(String ref) throws IOException {
+		if (ref.startsWith("pass:")) return ref.substring(5);
+		if (ref.startsWith("env:")) {
+			String value = System.getenv(ref.substring(4));
+			if (value == null) throw new IOException("The environment variable "+ref.substring(4)+" isn't set.");
+			return value;
+		}
+		if (ref.startsWith("file:")) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(ref.substring(5)), StandardCharsets.UTF_8));
+			try {
+				String value = in.readLine();
+				if (value == null) throw new IOException("The passphrase file "+ref.substring(5)+" is empty.");
+				return value;
+			}finally {
+				in.close();
+			}
+		}
+		throw new IOException("Passphrases must be given as env:NAME, file:PATH or pass:TEXT.");
+	}
+
+	private static List<String> splitCsv(String text) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < text.length(); ++i) {
+			char c = text.charAt(i);
+			if (quoted) {
+				if (c == '"' && i+1 < text.length() && text.charAt(i+1) == '"') {
+					field.append('"');
+					i++;
+				}else if (c == '"') {
+					quoted = false;
+				}else {
+					field.append(c);
+				}
+			}else if (c == '"') {
+				quoted = true;
+			}else if (c == ',') {
+				fields.add(field.toString().trim());
+				field.setLength(0);
+			}else {
+				field.append(c);
+			}
+		}
+		if (quoted) throw new IllegalArgumentException("Unterminated quote");
+		fields.add(field.toString().trim());
+		return fields;
+	}
+}
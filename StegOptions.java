@@ -0,0 +1,130 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * StegOptions holds the knobs for writing and reading stego messages that most callers
+ * never need to touch. The setters return this so they can be chained:
+ *
+ *   new StegOptions().setFormat(StegImage.FORMAT_LEGACY).setParallelism(2)
+ */
+public class StegOptions {
+
+	// One pool per parallelism level, shared by every job that asks for that level
+	private static final ConcurrentHashMap<Integer, ForkJoinPool> pools = new ConcurrentHashMap<Integer, ForkJoinPool>();
+
+	private int format = StegImage.FORMAT_PERMUTED;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private boolean sealed = false;
+	private BitLayout layout = BitLayout.DEFAULT;
+	private int pngLevel = 3;
+	private int pngFilter = PngWriter.FILTER_PAETH;
+
+	public int getFormat() {
+		return format;
+	}
+
+	/**
+	 * @param format StegImage.FORMAT_PERMUTED (the default) or StegImage.FORMAT_LEGACY.
+	 *               Only matters when writing; readers figure the format out on their own.
+	 */
+	public StegOptions setFormat(int format) {
+		if (format != StegImage.FORMAT_PERMUTED && format != StegImage.FORMAT_LEGACY) {
+			throw new IllegalArgumentException("Unknown format: "+format);
+		}
+		this.format = format;
+		return this;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism The most threads a single write or read may use. The default is the
+	 *                    number of processors; 1 keeps everything on the calling thread.
+	 */
+	public StegOptions setParallelism(int parallelism) {
+		if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1.");
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	public boolean isSealed() {
+		return sealed;
+	}
+
+	/**
+	 * @param sealed true if the message is known to be a StegContainer, or the Base64 text
+	 *               that older versions of Stego.jar embedded. readStego can then tell a
+	 *               wrong passphrase from the first few bytes of the message, instead of
+	 *               extracting all of it first. Only matters when reading.
+	 */
+	public StegOptions setSealed(boolean sealed) {
+		this.sealed = sealed;
+		return this;
+	}
+
+	public BitLayout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * @param layout Which bits of each pixel to hide the message in. The default is 2 bits of
+	 *               each of red, green and blue; more bits hold more message but change the
+	 *               picture more. The layout is recorded in the StegHeader, so readers don't
+	 *               need to be told. Only FORMAT_PERMUTED can use anything but the default.
+	 */
+	public StegOptions setLayout(BitLayout layout) {
+		if (layout == null) throw new IllegalArgumentException("The layout can't be null.");
+		this.layout = layout;
+		return this;
+	}
+
+	public int getPngLevel() {
+		return pngLevel;
+	}
+
+	/**
+	 * @param level How hard PngWriter deflates, from 0 (stored, fastest) to 9 (smallest). The
+	 *              default is 3, which with the Paeth filter is still quicker than ImageIO on a
+	 *              single thread, and makes a smaller file. Only matters when writing a PNG.
+	 */
+	public StegOptions setPngLevel(int level) {
+		if (level < 0 || level > 9) throw new IllegalArgumentException("PNG levels go from 0 to 9, not "+level+".");
+		this.pngLevel = level;
+		return this;
+	}
+
+	public int getPngFilter() {
+		return pngFilter;
+	}
+
+	/**
+	 * @param filter Which PNG filter PngWriter puts each row through before deflating it: one of
+	 *               PngWriter.FILTER_NONE to FILTER_PAETH for every row (FILTER_PAETH is the
+	 *               default), or FILTER_ADAPTIVE to try them all on each row and keep the best,
+	 *               which usually makes the smallest file but is slower than ImageIO unless
+	 *               there are spare cores to share it out. Only matters when writing a PNG.
+	 */
+	public StegOptions setPngFilter(int filter) {
+		if (filter < PngWriter.FILTER_NONE || filter > PngWriter.FILTER_ADAPTIVE) throw new IllegalArgumentException("Unknown PNG filter: "+filter);
+		this.pngFilter = filter;
+		return this;
+	}
+
+	/**
+	 * @return The fork-join pool for this parallelism level
+	 */
+	ForkJoinPool pool() {
+		ForkJoinPool pool = pools.get(parallelism);
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+			ForkJoinPool old = pools.putIfAbsent(parallelism, pool);
+			if (old != null) {
+				pool.shutdown();
+				pool = old;
+			}
+		}
+		return pool;
+	}
+}
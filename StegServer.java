@@ -0,0 +1,205 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.ImageIO;
+
+/**
+ * StegServer keeps one JVM running and takes jobs over a socket, so small jobs don't pay for
+ * JVM startup, ImageIO's plugin scan, the JIT and the JCE provider lookup every time.
+ *
+ * The protocol is the manifest format from StegJob, one job per line, answered with the
+ * JSON result line that BatchRunner prints. A connection can send as many jobs as it likes;
+ * each one is answered in order before the next is read. Jobs from every connection share
+ * one fixed pool of worker threads, and each connection gets a thread of its own to read
+ * its jobs, up to MAX_CONNECTIONS of them; more than that wait to be accepted until one of
+ * the others hangs up.
+ *
+ * The server only listens on the loopback interface. Anybody who can connect to it can
+ * read and write files as the user running it, so it shouldn't be left running on a
+ * machine with untrusted local users.
+ */
+public class StegServer {
+
+	public static final int DEFAULT_PORT = 7338;
+
+	/** How many connections are served at once */
+	public static final int MAX_CONNECTIONS = 64;
+
+	private final ServerSocket server;
+	private final ExecutorService workers;
+	private final StegOptions options;
+	private final Semaphore connections = new Semaphore(MAX_CONNECTIONS);
+
+	/**
+	 * @param port The port to listen on, or 0 for any free one
+	 * @param workers How many jobs to run at once
+	 */
+	public StegServer(int port, int workers) throws IOException {
+		this(port, workers, new StegOptions().getPngLevel());
+	}
+
+	/**
+	 * @param pngLevel How hard to compress the PNGs e jobs write (see StegOptions.setPngLevel)
+	 */
+	public StegServer(int port, int workers, int pngLevel) throws IOException {
+		if (workers < 1) throw new IllegalArgumentException("There must be at least one worker.");
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.workers = Executors.newFixedThreadPool(workers);
+		options = new StegOptions().setParallelism(Math.max(1, Runtime.getRuntime().availableProcessors()/workers)).setSealed(true).setPngLevel(pngLevel);
+	}
+
+	public int port() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until the server is closed.
+	 */
+	public void serve() throws IOException {
+		warmUp();
+		while (!server.isClosed()) {
+			// A client stuck in a loop of connecting can't use up every thread: past the limit,
+			// new connections sit in the backlog until one of these finishes
+			connections.acquireUninterruptibly();
+			final Socket socket;
+			try {
+				socket = server.accept();
+			}catch (IOException e) {
+				connections.release();
+				if (server.isClosed()) break;
+				throw e;
+			}
+			Thread handler = new Thread(new Runnable() {
+				public void run() {
+					try {
+						handle(socket);
+					}finally {
+						connections.release();
+					}
+				}
+			}, "stego-connection");
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	public void close() throws IOException {
+		server.close();
+		workers.shutdown();
+	}
+
+	private void handle(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+			String line;
+			int lineNo = 0;
+			while ((line = in.readLine()) != null) {
+				lineNo++;
+				String text = line.trim();
+				if (text.isEmpty() || text.startsWith("#")) continue;
+				out.write(submit(text, lineNo));
+				out.write('\n');
+				out.flush();
+			}
+		}catch (IOException e) {
+			// The client went away, nothing to tell it
+		}finally {
+			try {
+				socket.close();
+			}catch (IOException e) {
+			}
+		}
+	}
+
+	private String submit(String text, int lineNo) {
+		final StegJob job;
+		try {
+			job = StegJob.parse(text, lineNo);
+		}catch (IllegalArgumentException e) {
+			return "{\"line\":"+lineNo+",\"status\":\"error\",\"error\":"+Json.quote(e.getMessage())+"}";
+		}
+		Future<String> result = workers.submit(new Callable<String>() {
+			public String call() {
+				return job.run(options);
+			}
+		});
+		try {
+			return result.get();
+		}catch (InterruptedException e) {
+			result.cancel(true);
+			Thread.currentThread().interrupt();
+			return "{\"line\":"+lineNo+",\"status\":\"error\",\"error\":\"The server is shutting down.\"}";
+		}catch (ExecutionException e) {
+			return "{\"line\":"+lineNo+",\"status\":\"error\",\"error\":"+Json.quote(e.getCause().toString())+"}";
+		}
+	}
+
+	/**
+	 * Runs a tiny job through every stage before taking connections, so the first real
+	 * request doesn't pay for loading the image codecs, the crypto provider and the fork-join
+	 * pool.
+	 */
+	private void warmUp() {
+		ImageIO.getImageReadersByFormatName("png");
+		final BufferedImage cover = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+		try {
+			for (int i = 0; i < 2; ++i) {
+				byte[] msg = StegContainer.seal("warm up".getBytes(StandardCharsets.UTF_8), "warm up");
+				BufferedImage image = StegImage.writeStego(cover, msg, "warm up", options);
+				StegContainer.open(StegImage.readStegoBytes(image, "warm up", options), "warm up");
+				PngWriter.write(RowSource.of(image), new ByteArrayOutputStream(), options);
+			}
+		}catch (Exception e) {
+			// Warming up is only an optimisation
+		}
+	}
+
+	/**
+	 * The client side: sends each job line from in to the server on localhost and prints the
+	 * answers to out.
+	 * @return How many jobs failed
+	 */
+	public static int send(int port, BufferedReader in, PrintStream out) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			socket.setTcpNoDelay(true);
+			Writer requests = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+			BufferedReader answers = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			int failed = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				String text = line.trim();
+				if (text.isEmpty() || text.startsWith("#")) continue;
+				requests.write(text);
+				requests.write('\n');
+				requests.flush();
+				String answer = answers.readLine();
+				if (answer == null) throw new IOException("The server closed the connection.");
+				if (answer.contains("\"status\":\"error\"")) failed++;
+				out.println(answer);
+			}
+			return failed;
+		}finally {
+			socket.close();
+		}
+	}
+}
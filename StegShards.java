@@ -0,0 +1,287 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * StegShards spreads a message that's too big for one picture over a set of them. The
+ * message is cut into pieces that fit each cover in turn, every piece is sealed on its own
+ * (see StegContainer) and written behind a StegHeader that marks it as a shard, with the
+ * set it belongs to, its position in the set and whether it's the last one.
+ *
+ * Each shard is sealed separately so the message can be put back together a piece at a
+ * time: the images can be read in any order, and every shard is checked and written out as
+ * soon as the ones before it have been. Shards that turn up early wait in temporary files,
+ * so only a few images are ever in memory, however big the message is.
+ *
+ * Covers are decoded, embedded and written on a fixed number of worker threads, and the
+ * message is read lazily, so there are never more than workers pieces in memory either.
+ */
+public class StegShards {
+
+	/** More than seal ever adds to a message with the default cipher, which is 54 bytes */
+	private static final int SEAL_OVERHEAD = 64;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	//Prevent instantiation
+	private StegShards() {}
+
+	/**
+	 * Splits a message over as many of the covers as it takes, in the order given. Each shard
+	 * is written to outDir as a PNG with the same name as its cover. Covers too small to hold
+	 * anything are skipped.
+	 * @param message The message, read to the end but not closed
+	 * @param workers How many covers to work on at once
+	 * @return How many shards were written
+	 * @throws IOException if the covers can't hold the whole message, or one can't be read or
+	 *                     written
+	 */
+	public static int write(InputStream message, List<File> covers, final File outDir, final String passphrase, StegOptions options, int workers) throws IOException, InterruptedException {
+		if (workers < 1) throw new IllegalArgumentException("There must be at least one worker.");
+		if (!outDir.isDirectory() && !outDir.mkdirs()) throw new IOException("Can't create "+outDir);
+		final StegOptions opts = options;
+		final BitLayout layout = options.getLayout();
+		final int set = RANDOM.nextInt();
+		PushbackInputStream in = new PushbackInputStream(message, 1);
+
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		final Semaphore free = new Semaphore(workers);
+		final IOException[] failure = new IOException[1];
+		final List<String> names = new ArrayList<String>();
+		int shards = 0;
+		long held = 0;
+		boolean last = false;
+		try {
+			for (Iterator<File> it = covers.iterator(); it.hasNext() && !last; ) {
+				final File cover = it.next();
+				int[] size = dimensions(cover);
+				int room = StegImage.capacity(size[0], size[1], layout, StegHeader.MAX_SIZE) - SEAL_OVERHEAD;
+				if (room <= 0) continue;
+
+				final String name = cover.getName().replaceFirst("\\.[^.]*$", "")+".png";
+				if (names.contains(name)) throw new IOException("Two covers would both be written to "+name+".");
+				names.add(name);
+
+				// Wait for a worker before reading the piece, so only the ones being embedded are held
+				free.acquire();
+				synchronized (failure) {
+					if (failure[0] != null) break;
+				}
+				final byte[] piece = readUpTo(in, room);
+				held += piece.length;
+				int next = in.read();
+				if (next < 0) last = true;
+				else in.unread(next);
+
+				final int index = shards++;
+				final boolean isLast = last;
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							byte[] sealed = StegContainer.seal(piece, passphrase);
+							BufferedImage image = ImageIO.read(cover);
+							if (image == null) throw new IOException("Can't read "+cover+": unknown image format.");
+							StegHeader header = new StegHeader(sealed.length, layout, set, index, isLast);
+							image = StegImage.writeStego(image, sealed, 0, passphrase, opts, header);
+							PngWriter.write(image, new File(outDir, name), opts);
+						}catch (IOException e) {
+							synchronized (failure) {
+								if (failure[0] == null) failure[0] = e;
+							}
+						}finally {
+							free.release();
+						}
+					}
+				});
+			}
+		}finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		}
+		if (failure[0] != null) throw failure[0];
+		if (!last) throw new IOException("The covers only hold the first "+held+" bytes of the message. Please add more pictures.");
+		return shards;
+	}
+
+	/**
+	 * Puts a message back together from a directory holding its shards, in any order, and
+	 * writes it to out. Files that aren't images, or don't hold a shard for this passphrase,
+	 * are ignored.
+	 * @param out Where to write the message. It's flushed but not closed.
+	 * @param options These are set to sealed, since every shard is
+	 * @param workers How many images to read at once
+	 * @return How many bytes were written
+	 * @throws Exception if a shard is missing, damaged or from another set
+	 */
+	public static long read(File dir, final String passphrase, final OutputStream out, StegOptions options, int workers) throws Exception {
+		if (workers < 1) throw new IllegalArgumentException("There must be at least one worker.");
+		final StegOptions opts = options.setSealed(true); // shards are always sealed
+		File[] files = dir.listFiles();
+		if (files == null) throw new IOException("Can't list "+dir);
+		Arrays.sort(files);
+		final Joiner joiner = new Joiner(out);
+
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		final Semaphore free = new Semaphore(workers);
+		try {
+			for (final File file : files) {
+				if (!file.isFile()) continue;
+				free.acquire();
+				if (joiner.failed()) break;
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							BufferedImage image = ImageIO.read(file);
+							if (image == null) return;
+							StegHeader[] header = new StegHeader[1];
+							byte[] data;
+							try {
+								data = StegImage.readStegoBytes(image, passphrase, opts, header);
+							}catch (Exception e) { // no message for this passphrase, so not one of ours
+								return;
+							}
+							if (header[0] == null || !header[0].isShard()) return;
+
+							byte[] piece = StegContainer.open(data, passphrase);
+							if (piece == null) throw new IOException(file+" has been changed since it was written.");
+							joiner.add(header[0], piece);
+						}catch (Exception e) {
+							joiner.fail(e);
+						}finally {
+							free.release();
+						}
+					}
+				});
+			}
+		}finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			joiner.cleanUp();
+		}
+		return joiner.finish();
+	}
+
+	/**
+	 * Joiner writes shards out in order as they arrive, keeping any that arrive early in
+	 * temporary files until it's their turn.
+	 */
+	private static class Joiner {
+		private final OutputStream out;
+		private final Map<Integer, File> waiting = new HashMap<Integer, File>();
+		private Integer set = null;
+		private int next = 0, last = -1;
+		private long written = 0;
+		private Exception failure = null;
+
+		Joiner(OutputStream out) {
+			this.out = out;
+		}
+
+		synchronized void add(StegHeader header, byte[] piece) throws IOException {
+			if (failure != null) return;
+			if (set == null) set = header.set;
+			else if (set != header.set) throw new IOException("The directory holds shards from more than one set.");
+			if (header.index < next || waiting.containsKey(header.index)) throw new IOException("Shard "+header.index+" turned up twice.");
+			if (header.isLast()) last = header.index;
+
+			if (header.index != next) {
+				File temp = File.createTempFile("stego", ".shard");
+				temp.deleteOnExit();
+				OutputStream spill = new FileOutputStream(temp);
+				try {
+					spill.write(piece);
+				}finally {
+					spill.close();
+				}
+				waiting.put(header.index, temp);
+				return;
+			}
+			out.write(piece);
+			written += piece.length;
+			next++;
+
+			// catch up on any that were waiting for this one
+			byte[] buffer = new byte[8192];
+			for (File temp; (temp = waiting.remove(next)) != null; next++) {
+				InputStream in = new FileInputStream(temp);
+				try {
+					for (int n; (n = in.read(buffer)) > 0; written += n) out.write(buffer, 0, n);
+				}finally {
+					in.close();
+				}
+				temp.delete();
+			}
+		}
+
+		synchronized void fail(Exception e) {
+			if (failure == null) failure = e;
+		}
+
+		synchronized boolean failed() {
+			return failure != null;
+		}
+
+		synchronized void cleanUp() {
+			for (File temp : waiting.values()) temp.delete();
+		}
+
+		synchronized long finish() throws Exception {
+			if (failure != null) throw failure;
+			if (set == null) throw new Exception("No shards were found with this passphrase.");
+			if (last < 0 || next <= last) throw new Exception("Shard "+next+" is missing.");
+			out.flush();
+			return written;
+		}
+	}
+
+	/**
+	 * @return The width and height of an image, without decoding it if ImageIO can help it
+	 */
+	private static int[] dimensions(File file) throws IOException {
+		ImageInputStream stream = ImageIO.createImageInputStream(file);
+		if (stream == null) throw new IOException("Can't open "+file);
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if (!readers.hasNext()) throw new IOException("Can't read "+file+": unknown image format.");
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream, true, true);
+				return new int[] {reader.getWidth(0), reader.getHeight(0)};
+			}finally {
+				reader.dispose();
+			}
+		}finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Reads up to n bytes, stopping early only at the end of the stream.
+	 */
+	private static byte[] readUpTo(InputStream in, int n) throws IOException {
+		byte[] buffer = new byte[n];
+		int got = 0;
+		for (int r; got < n && (r = in.read(buffer, got, n-got)) > 0; got += r);
+		return got == n ? buffer : Arrays.copyOf(buffer, got);
+	}
+}
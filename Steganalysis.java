@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Steganalysis runs a list of Detectors over an image in a single pass: every row is read
+ * once and handed to each of them in turn. An image that's already in memory is cut into
+ * bands of rows that are counted on a fork-join pool, each with its own fresh detectors,
+ * and merged afterwards, like Analyzer does; an image file can be streamed through a
+ * RowSource without ever being in memory all at once.
+ */
+public class Steganalysis extends RecursiveTask<List<Detector>> {
+	private static final long serialVersionUID = 1L;
+
+	/** Bands smaller than this aren't worth giving to another thread */
+	private static final int MIN_ROWS = 64;
+
+	private final PixelBuffer source;
+	private final List<Detector> kinds;
+	private final int from, to, rows;
+
+	private Steganalysis(PixelBuffer source, List<Detector> kinds, int from, int to, int rows) {
+		this.source = source;
+		this.kinds = kinds;
+		this.from = from;
+		this.to = to;
+		this.rows = rows;
+	}
+
+	/**
+	 * Runs detectors like the given ones over the image, using as many threads as options
+	 * allows. The given detectors are only used for their fresh() and aren't changed.
+	 * @return The detectors with the whole image counted, in the same order
+	 */
+	public static List<Detector> run(PixelBuffer source, List<Detector> detectors, StegOptions options) {
+		int h = source.height();
+		if (options.getParallelism() <= 1 || h <= MIN_ROWS) return new Steganalysis(source, detectors, 0, h, h).compute();
+		int rows = Math.max(MIN_ROWS, h/(options.getParallelism()*4));
+		return options.pool().invoke(new Steganalysis(source, detectors, 0, h, rows));
+	}
+
+	/**
+	 * Runs detectors like the given ones over the rows of source, one row at a time.
+	 * @return The detectors with the whole image counted, in the same order
+	 */
+	public static List<Detector> run(RowSource source, List<Detector> detectors) throws IOException {
+		List<Detector> counted = fresh(detectors);
+		int width = source.width();
+		int[] row = new int[width];
+		for (int y = 0; y < source.height(); ++y) {
+			source.readRow(row);
+			for (Detector detector : counted) detector.row(row, width);
+		}
+		return counted;
+	}
+
+	protected List<Detector> compute() {
+		if (to-from > rows) {
+			int mid = (from+to) >>> 1;
+			Steganalysis top = new Steganalysis(source, kinds, from, mid, rows);
+			top.fork();
+			List<Detector> result = new Steganalysis(source, kinds, mid, to, rows).compute();
+			List<Detector> other = top.join();
+			for (int i = 0; i < result.size(); ++i) result.get(i).merge(other.get(i));
+			return result;
+		}
+
+		List<Detector> counted = fresh(kinds);
+		int width = source.width();
+		int[] row = new int[width];
+		for (int y = from; y < to; ++y) {
+			source.getRow(y, row);
+			for (Detector detector : counted) detector.row(row, width);
+		}
+		return counted;
+	}
+
+	private static List<Detector> fresh(List<Detector> kinds) {
+		List<Detector> fresh = new ArrayList<Detector>(kinds.size());
+		for (Detector kind : kinds) fresh.add(kind.fresh());
+		return fresh;
+	}
+
+	/**
+	 * Prints what each detector found, one line each.
+	 */
+	public static void print(List<Detector> detectors, PrintStream out) {
+		for (Detector detector : detectors) {
+			double[] e = detector.estimates();
+			out.printf("%s (red, green, blue): %.4f, %.4f, %.4f%n", detector.name(), e[0], e[1], e[2]);
+		}
+	}
+}
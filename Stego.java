@@ -1,33 +1,53 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
 
 public class Stego {
 	public static void main(String[] args) {
-		Scanner in = new Scanner(System.in);
+		BufferedInputStream in = new BufferedInputStream(System.in);
 		if (args.length == 0) {
-			System.out.println("Usage: java -jar Stego.jar [e|d|a]\n\te : encrypt\n\td : decrypt\n\ta : analyze");
+			System.out.println("Usage: java -jar Stego.jar [e|d|a|b|split|join|scan|serve|client]\n\te : encrypt\n\td : decrypt\n\ta [margin] : analyze, or just sample until within margin percentage points\n\tb <manifest> [workers] [png level] : run a batch of jobs\n\tsplit <covers> <outdir> [workers] : spread a message over a directory of images\n\tjoin <dir> [workers] : put a split message back together\n\tscan <dir> [workers] [resident] [margin] : analyze every image under dir\n\tserve [port] [workers] [png level] : run jobs sent by client\n\tclient [port] : send jobs from stdin to serve");
 			
 			
 		//Put a message into a file
 		}else if (args[0].equals("e")) {
 			System.out.print("Enter the path to the normal image: ");
-			String infile = in.nextLine();
+			String infile = readLine(in);
 			System.out.print("Enter the path to the output image: ");
-			String outfile = in.nextLine();
-			if (!outfile.endsWith(".png")) outfile += ".png";
+			String outfile = readLine(in);
+			// Uncompressed covers can be written back out as themselves; everything else becomes a PNG
+			boolean patch = MappedImage.canPatch(new File(infile), new File(outfile));
+			if (!patch && !outfile.endsWith(".png")) outfile += ".png";
 			System.out.print("Enter your passphrase to recover the data: ");
-			String pass = in.nextLine();
+			String pass = readLine(in);
 			System.out.println("Enter the message to hide in the file. Press ctrl+d when done.");
-			String msg = "";
-			while (in.hasNext()) msg += in.nextLine()+"\n";
-			DesEncrypter enc = new DesEncrypter(pass);
-			msg = enc.encrypt(msg);
-			
-			System.out.print("Embedding...");
 			try {
-				StegImage.writeStego(infile, msg, outfile,pass);
+				byte[] msg = StegContainer.seal(StegImage.readAll(in), pass);
+				
+				System.out.print("Embedding...");
+				StegOptions options = new StegOptions();
+				if (patch) {
+					MappedImage.writeStego(new File(infile), msg, pass, options, new File(outfile));
+				}else if (StreamEmbedder.tooBigForHeap(new File(infile))) {
+					StreamEmbedder.writeStego(new File(infile), msg, pass, options, new File(outfile));
+				}else {
+					BufferedImage image = ImageIO.read(new File(infile));
+					if (image == null) throw new IOException("Can't read "+infile+": unknown image format.");
+					PngWriter.write(StegImage.writeStego(image, msg, pass, options), new File(outfile), options);
+				}
 			}catch (IOException e) {
 				System.err.println(e.getMessage());
 				System.exit(1);
@@ -38,13 +58,13 @@ public class Stego {
 		//Grab a message from a file
 		}else if (args[0].equals("d")) {
 			System.out.print("Enter the path to the input image: ");
-			String infile = in.nextLine();
+			String infile = readLine(in);
 			System.out.print("Enter your passphrase: ");
-			String pass = in.nextLine();
-			String msg = "";
+			String pass = readLine(in);
+			byte[] msg = null;
 			try {
-				msg = StegImage.readStego(infile,pass);
-				msg = new DesEncrypter(pass).decrypt(msg);
+				msg = StegImage.readStegoBytes(infile, pass, new StegOptions().setSealed(true));
+				msg = StegContainer.open(msg, pass);
 			}catch (IOException e) {
 				System.err.println(e.getMessage());
 				System.exit(1);
@@ -52,13 +72,12 @@ public class Stego {
 				e.printStackTrace();
 				System.out.println("No message could be found in the picture.");
 				System.out.print("Dump the data in the LSBs to a file anyway [y/n]? ");
-				String ans = in.nextLine();
+				String ans = readLine(in);
 				if (ans.equalsIgnoreCase("y")) {
 					System.out.print("Enter the name of the file to save to: ");
 					try {
-						FileOutputStream out = new FileOutputStream(new File(in.nextLine()));
-						out.write(StegImage.readDirect(infile));
-						out.flush();
+						FileOutputStream out = new FileOutputStream(new File(readLine(in)));
+						StegImage.readDirect(infile, out);
 						out.close();
 						out = null;
 					} catch (IOException err) {
@@ -72,21 +91,184 @@ public class Stego {
 			if (msg == null) { // incorrect passpharase
 				System.out.println("Your passphrase was incorrect.");
 			}else {
-				System.out.println(msg);
+				System.out.write(msg, 0, msg.length);
+				System.out.println();
 			}
 			
 			
-		}else if (args[0].equals("a")) {
+		}else if (args[0].equals("a") && isMargin(args, 1)) {
 			System.out.print("Enter the path to the input image: ");
-			String infile = in.nextLine();
+			String infile = readLine(in);
+			try {
+				if (args.length >= 2 && Double.parseDouble(args[1]) > 0) StegImage.analyze(infile, Double.parseDouble(args[1]));
+				else StegImage.analyze(infile);
+			}catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+			
+		//Run every job in a manifest without asking anything
+		}else if (args[0].equals("b") && args.length >= 2 && isCount(args, 2) && isInt(args, 3, 0, 9)) {
+			int workers = args.length >= 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+			try {
+				BufferedReader manifest = args[1].equals("-") ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+						: Files.newBufferedReader(new File(args[1]).toPath(), StandardCharsets.UTF_8);
+				int level = args.length >= 4 ? Integer.parseInt(args[3]) : new StegOptions().getPngLevel();
+				int failed = new BatchRunner(workers, level).run(manifest, System.out);
+				manifest.close();
+				if (failed > 0) System.exit(2);
+			}catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}catch (InterruptedException e) {
+				System.exit(1);
+			}
+			
+		//Spread a message too big for one picture over a directory of them
+		}else if (args[0].equals("split") && args.length >= 3 && isCount(args, 3)) {
+			int workers = args.length >= 4 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+			System.out.print("Enter your passphrase to recover the data: ");
+			String pass = readLine(in);
+			System.out.println("Enter the message to hide in the files. Press ctrl+d when done.");
+			try {
+				List<File> covers = images(new File(args[1]));
+				StegOptions options = new StegOptions().setParallelism(Math.max(1, Runtime.getRuntime().availableProcessors()/workers));
+				int shards = StegShards.write(in, covers, new File(args[2]), pass, options, workers);
+				System.out.println("Message hidden successfully in "+shards+" picture"+(shards == 1 ? "" : "s")+"!");
+			}catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}catch (InterruptedException e) {
+				System.exit(1);
+			}
+			
+		//Put a split message back together
+		}else if (args[0].equals("join") && args.length >= 2 && isCount(args, 2)) {
+			int workers = args.length >= 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+			System.out.print("Enter your passphrase: ");
+			String pass = readLine(in);
+			try {
+				StegOptions options = new StegOptions().setParallelism(Math.max(1, Runtime.getRuntime().availableProcessors()/workers));
+				StegShards.read(new File(args[1]), pass, System.out, options, workers);
+				System.out.println();
+			}catch (Exception e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+			
+		//Analyze every image under a directory
+		}else if (args[0].equals("scan") && args.length >= 2 && isCount(args, 2) && isCount(args, 3) && isMargin(args, 4)) {
+			int workers = args.length >= 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+			int resident = args.length >= 4 ? Integer.parseInt(args[3]) : 2*workers;
+			double margin = args.length >= 5 ? Double.parseDouble(args[4]) : 0;
+			try {
+				List<CorpusScanner.Suspect> suspects = new CorpusScanner(workers, workers, resident, margin).run(new File(args[1]), System.out, 10);
+				if (!suspects.isEmpty()) System.err.println("Most suspicious:");
+				for (CorpusScanner.Suspect suspect : suspects) System.err.printf("%8.4f  %s%n", suspect.score, suspect.file);
+			}catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}catch (InterruptedException e) {
+				System.exit(1);
+			}
+			
+		//Stay running and take jobs from clients
+		}else if (args[0].equals("serve") && isInt(args, 1, 0, 65535) && isCount(args, 2) && isInt(args, 3, 0, 9)) {
+			int port = args.length >= 2 ? Integer.parseInt(args[1]) : StegServer.DEFAULT_PORT;
+			int workers = args.length >= 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
 			try {
-				StegImage.analyze(infile);
+				int level = args.length >= 4 ? Integer.parseInt(args[3]) : new StegOptions().getPngLevel();
+				StegServer server = new StegServer(port, workers, level);
+				System.err.println("Listening on localhost:"+server.port());
+				server.serve();
+			}catch (IOException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+			
+		//Hand jobs to a running server
+		}else if (args[0].equals("client") && isInt(args, 1, 0, 65535)) {
+			int port = args.length >= 2 ? Integer.parseInt(args[1]) : StegServer.DEFAULT_PORT;
+			try {
+				int failed = StegServer.send(port, new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)), System.out);
+				if (failed > 0) System.exit(2);
 			}catch (IOException e) {
 				System.err.println(e.getMessage());
 				System.exit(1);
 			}
 		}else {
-			System.out.println("Usage: java -jar Stego.jar [e|d|a]\n\te : encrypt\n\td : decrypt\n\ta : analyze");
+			System.out.println("Usage: java -jar Stego.jar [e|d|a|b|split|join|scan|serve|client]\n\te : encrypt\n\td : decrypt\n\ta [margin] : analyze, or just sample until within margin percentage points\n\tb <manifest> [workers] [png level] : run a batch of jobs\n\tsplit <covers> <outdir> [workers] : spread a message over a directory of images\n\tjoin <dir> [workers] : put a split message back together\n\tscan <dir> [workers] [resident] [margin] : analyze every image under dir\n\tserve [port] [workers] [png level] : run jobs sent by client\n\tclient [port] : send jobs from stdin to serve");
+		}
+	}
+	
+	/**
+	 * @return Whether the optional argument at i, if it's there, is a whole number of at least
+	 *         1, like a count of workers. Anything else gets the usage message.
+	 */
+	private static boolean isCount(String[] args, int i) {
+		return isInt(args, i, 1, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * @return Whether the optional argument at i, if it's there, is a whole number from min to
+	 *         max
+	 */
+	private static boolean isInt(String[] args, int i, int min, int max) {
+		if (args.length <= i) return true;
+		try {
+			int n = Integer.parseInt(args[i]);
+			return n >= min && n <= max;
+		}catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return Whether the optional argument at i, if it's there, is a number of percentage
+	 *         points that's at least 0, where 0 means not to sample at all
+	 */
+	private static boolean isMargin(String[] args, int i) {
+		if (args.length <= i) return true;
+		try {
+			double margin = Double.parseDouble(args[i]);
+			return margin >= 0 && !Double.isInfinite(margin);
+		}catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return The files in a directory that ImageIO can read, going by their extensions, in
+	 *         order of name
+	 */
+	private static List<File> images(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) throw new IOException("Can't list "+dir);
+		Arrays.sort(files);
+		List<File> images = new ArrayList<File>();
+		for (File file : files) {
+			String name = file.getName();
+			int dot = name.lastIndexOf('.');
+			if (file.isFile() && dot > 0 && ImageIO.getImageReadersBySuffix(name.substring(dot+1)).hasNext()) images.add(file);
+		}
+		return images;
+	}
+	
+	/**
+	 * Reads one line of the answer to a prompt, without reading any further ahead, so that
+	 * whatever comes after it (a message, say) is still in the stream.
+	 * @return The line without its line break, or an empty line at the end of the input
+	 */
+	private static String readLine(InputStream in) {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		try {
+			for (int b; (b = in.read()) >= 0 && b != '\n'; ) {
+				if (b != '\r') line.write(b);
+			}
+		}catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
 		}
+		return new String(line.toByteArray(), StandardCharsets.UTF_8);
 	}
 }
@@ -0,0 +1,263 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * StreamEmbedder is writeStego for covers too big to decode into memory. writeStego jumps
+ * all over the image, so it needs every pixel at hand. This turns the jumping around:
+ *
+ *   1. Work out every pixel the header and message go into, and the bits each one gets,
+ *      exactly the way writeStego would, as one long per pixel.
+ *   2. Sort those by position. They're sorted in runs of RUN at a time, and if there's more
+ *      than one run, each is spilled to a temporary file and the runs are merged back.
+ *   3. Stream the cover through a row at a time (see RowSource) into PngWriter, patching
+ *      each row with the pixels that fall in it on the way past.
+ *
+ * So only a few blocks of rows, a run of positions and a buffer per spilled run are ever in
+ * memory. The PNG that comes out is the same one that writeStego followed by
+ * PngWriter.write would have made.
+ */
+public class StreamEmbedder {
+
+	/** How many positions to sort in memory at once: an eighth of the heap, up to 32 MB worth */
+	private static final int RUN = (int)Math.max(1 << 16, Math.min(1 << 22, Runtime.getRuntime().maxMemory()/64));
+
+	//Prevent instantiation
+	private StreamEmbedder() {}
+
+	/**
+	 * @return Whether decoding a cover would take a good part of the heap, so it's better
+	 *         embedded out of core
+	 */
+	public static boolean tooBigForHeap(File infile) throws IOException {
+		RowSource source = RowSource.open(infile);
+		try {
+			return (long)source.width()*source.height()*4 > Runtime.getRuntime().maxMemory()/4;
+		}finally {
+			source.close();
+		}
+	}
+
+	/**
+	 * Hides a message in a cover and writes the result out as a PNG, without ever holding
+	 * the whole cover in memory. Only the permuted format can be written this way, since the
+	 * legacy pixel order can't be worked out without keeping track of every pixel visited.
+	 * @throws IOException if the cover can only be read by decoding it all at once (see
+	 *         RowSource.openBanded), since then there'd be no point
+	 */
+	public static void writeStego(File infile, byte[] message, String passphrase, StegOptions options, File outfile) throws IOException {
+		if (options.getFormat() != StegImage.FORMAT_PERMUTED) throw new IllegalArgumentException("Only the permuted format can be written out of core.");
+		RowSource source = RowSource.openBanded(infile);
+		if (source == null) throw new IOException("Can't embed into "+infile+" out of core: it's too big for the heap, and its format (such as JPEG, or a PNG that isn't 8-bit RGB or RGBA) can only be decoded all at once. Please convert it to a PNG, BMP, PPM or TIFF first, or give Java more memory.");
+		Sorter sorter = new Sorter();
+		try {
+			int w = source.width(), h = source.height();
+			if ((long)w*h > Integer.MAX_VALUE) throw new IOException("The picture has more pixels than the permuted format can address.");
+			BitLayout layout = options.getLayout();
+			StegHeader header = new StegHeader(message.length, layout);
+			if (message.length > StegImage.capacity(w, h, layout, header.size())) {
+				throw new IOException("The picture is too small to hold the message! Please choose a larger picture.");
+			}
+
+			// The same pixels and bits as writeStego: the header, then the message
+			PixelPermutation perm = PixelPermutation.forPassphrase(passphrase, w*h);
+			byte[] head = header.encode();
+			plan(sorter, perm, BitLayout.DEFAULT, head, 0);
+			plan(sorter, perm, layout, message, StegImage.messageBase(header));
+
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(outfile), 65536);
+			try {
+				PngWriter.write(new PatchedRows(source, sorter.sorted()), out, options);
+			}finally {
+				out.close();
+			}
+		}finally {
+			sorter.close();
+			source.close();
+		}
+	}
+
+	/**
+	 * Adds a record for every pixel that msg goes into, starting at bit base of the stream.
+	 * A record is the pixel's position in the top 35 bits, so sorting the records sorts the
+	 * positions, then the layout's code, which of the layout's bits to set, and what to set
+	 * them to.
+	 */
+	private static void plan(Sorter sorter, PixelPermutation perm, BitLayout layout, byte[] msg, long base) throws IOException {
+		int bits = layout.bitsPerPixel();
+		int pixel = (int)(base/bits);
+		BitPacker packer = new BitPacker(layout, (int)(base%bits));
+		packer.input(msg, 0, msg.length);
+		long code = (long)layout.code() << 24;
+		while (!packer.isEmpty()) {
+			int value = packer.take();
+			sorter.add(((long)perm.map(pixel++) << 29) | code | (packer.mask() << 12) | value);
+		}
+	}
+
+	/**
+	 * Puts a record's bits into a pixel.
+	 */
+	private static int apply(long record, int rgb) {
+		BitLayout layout = BitLayout.fromCode((int)(record >>> 24) & 0x1F);
+		int mask = (int)(record >>> 12) & 0xFFF, value = (int)record & 0xFFF;
+		return layout.embed(rgb, (layout.extract(rgb) & ~mask) | value);
+	}
+
+	private static int position(long record) {
+		return (int)(record >>> 29);
+	}
+
+	/**
+	 * PatchedRows hands the cover's rows on with the message patched in.
+	 */
+	private static class PatchedRows implements RowSource {
+		private final RowSource source;
+		private final Records records;
+		private final int width;
+		private int y = 0;
+
+		PatchedRows(RowSource source, Records records) {
+			this.source = source;
+			this.records = records;
+			width = source.width();
+		}
+
+		public int width() { return width; }
+		public int height() { return source.height(); }
+		public boolean hasAlpha() { return source.hasAlpha(); }
+
+		public void readRow(int[] row) throws IOException {
+			source.readRow(row);
+			long end = (long)(y+1)*width;
+			while (records.hasNext() && position(records.peek()) < end) {
+				long record = records.next();
+				int x = (int)(position(record)-(long)y*width);
+				row[x] = apply(record, row[x]);
+			}
+			y++;
+		}
+
+		public void close() {}
+	}
+
+	/**
+	 * Records in order, one at a time.
+	 */
+	private interface Records {
+		boolean hasNext();
+		long peek();
+		long next() throws IOException;
+	}
+
+	/**
+	 * Sorter sorts records in runs of RUN, spilling each full run to a temporary file, and
+	 * merges them back when asked.
+	 */
+	private static class Sorter {
+		private long[] run = new long[1024];
+		private int size = 0;
+		private final List<File> spilled = new ArrayList<File>();
+		private final List<DataInputStream> open = new ArrayList<DataInputStream>();
+
+		void add(long record) throws IOException {
+			if (size == run.length) {
+				if (size == RUN) spill();
+				else run = Arrays.copyOf(run, Math.min(RUN, size*2));
+			}
+			run[size++] = record;
+		}
+
+		private void spill() throws IOException {
+			Arrays.sort(run, 0, size);
+			File file = File.createTempFile("stego", ".run");
+			file.deleteOnExit();
+			spilled.add(file);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+			try {
+				for (int i = 0; i < size; ++i) out.writeLong(run[i]);
+			}finally {
+				out.close();
+			}
+			size = 0;
+		}
+
+		Records sorted() throws IOException {
+			Arrays.sort(run, 0, size);
+			if (spilled.isEmpty()) {
+				return new Records() {
+					private int i = 0;
+					public boolean hasNext() { return i < size; }
+					public long peek() { return run[i]; }
+					public long next() { return run[i++]; }
+				};
+			}
+			spill();
+			run = null;
+
+			// Merge the runs, keeping the next record of each in a heap
+			final PriorityQueue<Run> heap = new PriorityQueue<Run>();
+			for (File file : spilled) {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+				open.add(in);
+				Run r = new Run(in);
+				if (r.advance()) heap.add(r);
+			}
+			return new Records() {
+				public boolean hasNext() { return !heap.isEmpty(); }
+				public long peek() { return heap.peek().head; }
+				public long next() throws IOException {
+					Run r = heap.poll();
+					long record = r.head;
+					if (r.advance()) heap.add(r);
+					return record;
+				}
+			};
+		}
+
+		void close() {
+			for (DataInputStream in : open) {
+				try {
+					in.close();
+				}catch (IOException e) {}
+			}
+			for (File file : spilled) file.delete();
+		}
+	}
+
+	private static class Run implements Comparable<Run> {
+		private final DataInputStream in;
+		long head;
+
+		Run(DataInputStream in) {
+			this.in = in;
+		}
+
+		/**
+		 * @return false at the end of the run
+		 */
+		boolean advance() throws IOException {
+			try {
+				head = in.readLong();
+				return true;
+			}catch (EOFException e) {
+				return false;
+			}
+		}
+
+		public int compareTo(Run o) {
+			return Long.compare(head, o.head);
+		}
+	}
+}
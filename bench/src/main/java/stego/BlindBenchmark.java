@@ -0,0 +1,54 @@
+package stego;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * writeBlind and readBlind, which copy or walk the image in row order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class BlindBenchmark {
+
+	@Param({"0.3", "2", "12", "50"})
+	public double megapixels;
+
+	@Param({"1", "16", "128"})
+	public int payloadKB;
+
+	private BufferedImage cover, stego;
+	private String message;
+
+	@Setup
+	public void setup() throws Exception {
+		message = Covers.payload(payloadKB);
+		cover = Covers.cover(megapixels);
+		stego = StegImage.writeBlind(cover, message);
+	}
+
+	@Benchmark
+	public BufferedImage writeBlind() throws Exception {
+		return StegImage.writeBlind(cover, message);
+	}
+
+	@Benchmark
+	public String readBlind() throws Exception {
+		return StegImage.readBlind(stego);
+	}
+}
@@ -0,0 +1,56 @@
+package stego;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Random;
+
+/**
+ * Synthetic cover images and payloads for the benchmarks, so nothing has to be read from
+ * disk. The covers are 4:3 BGR images (what ImageIO hands back for a JPEG) filled with
+ * smooth gradients plus a little noise, which is close enough to a photo for the LSB code.
+ */
+final class Covers {
+
+	static final String PASSPHRASE = "correct horse battery staple";
+
+	private Covers() {}
+
+	/**
+	 * @param megapixels The size of the image, e.g. 0.3 for 640x480
+	 */
+	static BufferedImage cover(double megapixels) {
+		int h = (int)Math.round(Math.sqrt(megapixels*1e6*3/4));
+		int w = (int)Math.round(h*4.0/3);
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+		byte[] data = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+		Random rand = new Random(w*31+h);
+		for (int y = 0, i = 0; y < h; ++y) {
+			for (int x = 0; x < w; ++x) {
+				int noise = rand.nextInt(8);
+				data[i++] = (byte)(x*255/w + noise);
+				data[i++] = (byte)(y*255/h + noise);
+				data[i++] = (byte)((x+y)*127/(w+h) + noise);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * @return A copy of the image, for benchmarks that change their input
+	 */
+	static BufferedImage copy(BufferedImage image) {
+		BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
+		copy.setData(image.getRaster());
+		return copy;
+	}
+
+	/**
+	 * @return kb kilobytes of printable ASCII, so it survives String conversions unchanged
+	 */
+	static String payload(int kb) {
+		char[] text = new char[kb*1024];
+		Random rand = new Random(kb);
+		for (int i = 0; i < text.length; ++i) text[i] = (char)(' ' + rand.nextInt(95));
+		return new String(text);
+	}
+}
@@ -0,0 +1,83 @@
+package stego;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DesEncrypter, Base64Coder and StegContainer on their own. newEncrypter is the per-message
+ * cost of deriving the key and setting up the ciphers; seal and open are the whole trip a
+ * message takes through the container with AES-GCM, once the key is in the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+
+	@Param({"1", "16", "128"})
+	public int payloadKB;
+
+	private DesEncrypter encrypter;
+	private String message, encrypted;
+	private byte[] bytes;
+	private String encoded;
+	private byte[] sealed;
+
+	@Setup
+	public void setup() {
+		encrypter = new DesEncrypter(Covers.PASSPHRASE);
+		message = Covers.payload(payloadKB);
+		encrypted = encrypter.encrypt(message);
+		bytes = message.getBytes();
+		encoded = Base64Coder.encodeLines(bytes);
+		sealed = StegContainer.seal(bytes, Covers.PASSPHRASE);
+	}
+
+	@Benchmark
+	public DesEncrypter newEncrypter() {
+		return new DesEncrypter(Covers.PASSPHRASE);
+	}
+
+	@Benchmark
+	public String encrypt() {
+		return encrypter.encrypt(message);
+	}
+
+	@Benchmark
+	public String decrypt() {
+		return encrypter.decrypt(encrypted);
+	}
+
+	@Benchmark
+	public String base64Encode() {
+		return Base64Coder.encodeLines(bytes);
+	}
+
+	@Benchmark
+	public byte[] base64Decode() {
+		return Base64Coder.decodeLines(encoded);
+	}
+
+	@Benchmark
+	public byte[] seal() {
+		return StegContainer.seal(bytes, Covers.PASSPHRASE);
+	}
+
+	@Benchmark
+	public byte[] open() {
+		return StegContainer.open(sealed, Covers.PASSPHRASE);
+	}
+}
@@ -0,0 +1,60 @@
+package stego;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * writeStego and readStego on in-memory images, for both pixel orders. writeStego changes
+ * the cover in place, but it writes the same bits every time, so reusing it is fine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class EmbedBenchmark {
+
+	@Param({"0.3", "2", "12", "50"})
+	public double megapixels;
+
+	@Param({"1", "16", "128"})
+	public int payloadKB;
+
+	@Param({"permuted", "legacy"})
+	public String format;
+
+	private BufferedImage cover, stego;
+	private String message;
+	private StegOptions options;
+
+	@Setup
+	public void setup() throws Exception {
+		options = new StegOptions().setFormat(format.equals("legacy") ? StegImage.FORMAT_LEGACY : StegImage.FORMAT_PERMUTED);
+		message = Covers.payload(payloadKB);
+		cover = Covers.cover(megapixels);
+		stego = StegImage.writeStego(Covers.copy(cover), message, Covers.PASSPHRASE, options);
+	}
+
+	@Benchmark
+	public BufferedImage writeStego() throws Exception {
+		return StegImage.writeStego(cover, message, Covers.PASSPHRASE, options);
+	}
+
+	@Benchmark
+	public String readStego() throws Exception {
+		return StegImage.readStego(stego, Covers.PASSPHRASE, options);
+	}
+}
@@ -0,0 +1,89 @@
+package stego;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PngWriter against the ImageIO.write it replaced. parallelism=1 is what every b and serve
+ * job gets by default, since they split the cores between the workers, so the default level
+ * and filter must not lose to ImageIO there. The PNGs are thrown away as they're written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PngBenchmark {
+
+	@Param({"2", "12"})
+	public double megapixels;
+
+	@Param({"1", "4"})
+	public int parallelism;
+
+	/** default, or level/filter like 4/5 for level 4 with FILTER_ADAPTIVE */
+	@Param({"default", "4/5", "1/4"})
+	public String png;
+
+	private BufferedImage cover;
+	private StegOptions options;
+
+	@Setup
+	public void setup() {
+		cover = Covers.cover(megapixels);
+		options = new StegOptions().setParallelism(parallelism);
+		if (!png.equals("default")) {
+			String[] setting = png.split("/");
+			options.setPngLevel(Integer.parseInt(setting[0])).setPngFilter(Integer.parseInt(setting[1]));
+		}
+	}
+
+	@Benchmark
+	public long pngWriter() throws IOException {
+		Counter out = new Counter();
+		PngWriter.write(RowSource.of(cover), out, options);
+		return out.count;
+	}
+
+	/**
+	 * The same for every parallelism and png, which only PngWriter uses
+	 */
+	@Benchmark
+	public long imageIO() throws IOException {
+		Counter out = new Counter();
+		ImageIO.write(cover, "png", out);
+		return out.count;
+	}
+
+	/**
+	 * Counts the bytes written to it, so the file size doesn't get optimized away
+	 */
+	private static class Counter extends OutputStream {
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package stego;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole-image passes: readDirect, analyze and detect, and the sampled analyze for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ScanBenchmark {
+
+	@Param({"0.3", "2", "12", "50"})
+	public double megapixels;
+
+	private BufferedImage image;
+	private StegOptions options;
+
+	@Setup
+	public void setup() {
+		image = Covers.cover(megapixels);
+		options = new StegOptions();
+	}
+
+	@Benchmark
+	public byte[] readDirect() {
+		return StegImage.readDirect(image);
+	}
+
+	@Benchmark
+	public AnalysisResult analyze() {
+		return StegImage.analyze(image, options);
+	}
+
+	@Benchmark
+	public List<Detector> detect() {
+		return StegImage.detect(image, options);
+	}
+
+	@Benchmark
+	public AnalysisResult triage() {
+		return StegImage.analyze(image, options, 1);
+	}
+}